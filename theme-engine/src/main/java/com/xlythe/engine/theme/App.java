@@ -27,6 +27,12 @@ public class App implements Serializable {
     }
 
     public static App getApp(Context context, String packageName) {
+        // Themes we've seen before are remembered, along with their names.
+        App app = Theme.getCachedApp(context, packageName);
+        if (app != null) {
+            return app;
+        }
+
         PackageManager manager = context.getPackageManager();
         ResolveInfo info = manager.resolveActivity(manager.getLaunchIntentForPackage(packageName), 0);
         return new App(info.loadLabel(manager).toString(), packageName);
@@ -46,4 +52,21 @@ public class App implements Serializable {
     public String getPackageName() {
         return packageName;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof App)) {
+            return false;
+        }
+        App app = (App) o;
+        return name.equals(app.name) && packageName.equals(app.packageName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + packageName.hashCode();
+    }
 }
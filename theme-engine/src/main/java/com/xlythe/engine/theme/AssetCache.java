@@ -0,0 +1,265 @@
+package com.xlythe.engine.theme;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.annotation.Nullable;
+
+import static com.xlythe.engine.theme.Theme.TAG;
+
+/**
+ * Keeps copies of a theme's asset files on disk so they only have to be pulled through the theme's
+ * FileProvider once per version of the theme. Files live in a directory keyed by the theme's
+ * versionCode and lastUpdateTime, and are written under a temporary name and then renamed into
+ * place so that a reader never sees a partial file.
+ *
+ * When the theme is updated, the previous version's files are kept until the new version's manifest
+ * arrives. Any file whose size and hash didn't change is then moved across instead of being copied
+ * out of the theme again.
+ *
+ * Opening a cache doesn't touch the disk. Older versions are only cleaned up by
+ * {@link #deleteStaleVersions}, which is meant to be called off the main thread.
+ */
+class AssetCache {
+    private static final String DIRECTORY_NAME = "theme_assets";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File packageDirectory;
+    private final File directory;
+
+    private AssetCache(File packageDirectory, File directory) {
+        this.packageDirectory = packageDirectory;
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the cache for the given version of the theme.
+     */
+    static AssetCache create(Context context, String packageName, long versionCode, long lastUpdateTime) {
+        File packageDirectory = new File(new File(context.getCacheDir(), DIRECTORY_NAME), packageName);
+        return new AssetCache(packageDirectory, new File(packageDirectory, getVersion(versionCode, lastUpdateTime)));
+    }
+
+    private static String getVersion(long versionCode, long lastUpdateTime) {
+        return versionCode + "_" + lastUpdateTime;
+    }
+
+    /**
+     * Returns true if this cache holds the assets of the given version of the theme.
+     */
+    boolean isVersion(long versionCode, long lastUpdateTime) {
+        return directory.getName().equals(getVersion(versionCode, lastUpdateTime));
+    }
+
+    /**
+     * Deletes everything cached for older versions of the theme, except that the most recent one
+     * is kept until this version's manifest tells us which of its files are unchanged.
+     */
+    synchronized void deleteStaleVersions() {
+        File[] versions = packageDirectory.listFiles();
+        if (versions == null) {
+            return;
+        }
+        File previousDirectory = hasManifest() ? null : findPreviousVersion(versions);
+        for (File file : versions) {
+            if (!file.equals(directory) && !file.equals(previousDirectory)) {
+                delete(file);
+            }
+        }
+    }
+
+    private boolean hasManifest() {
+        return new File(directory, FileProvider.PATH_MANIFEST).isFile();
+    }
+
+    /**
+     * Returns the directory of the most recent older version that has a manifest, or null if there
+     * isn't one.
+     */
+    @Nullable
+    private File findPreviousVersion(File[] versions) {
+        File previousDirectory = null;
+        for (File file : versions) {
+            if (!file.equals(directory) && new File(file, FileProvider.PATH_MANIFEST).isFile()
+                    && (previousDirectory == null || file.lastModified() > previousDirectory.lastModified())) {
+                previousDirectory = file;
+            }
+        }
+        return previousDirectory;
+    }
+
+    /**
+     * Returns the cached copy of the asset, or null if it hasn't been cached yet.
+     */
+    @Nullable
+    File get(String name) {
+        File file = new File(directory, name);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the cached copy of the asset if it has the expected size, or null if it hasn't been
+     * cached yet (or the copy is bad).
+     */
+    @Nullable
+    File get(String name, AssetManifest.Asset expected) {
+        File file = get(name);
+        return file != null && file.length() == expected.size ? file : null;
+    }
+
+    /**
+     * Copies the asset into the cache and returns the cached file. If the length is known, from
+     * either the descriptor or the theme's manifest, exactly that many bytes are copied.
+     */
+    File put(String name, AssetFileDescriptor afd, long length) throws IOException {
+        if (afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            length = afd.getLength();
+        }
+        InputStream in = afd.createInputStream();
+        try {
+            return put(name, in, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies exactly length bytes of the stream into the cache and returns the cached file. The
+     * stream is left open, so that several assets can be read from one stream. A length of -1
+     * copies until the end of the stream.
+     */
+    File put(String name, InputStream in, long length) throws IOException {
+        File target = new File(directory, name);
+        if (!target.getCanonicalPath().startsWith(directory.getCanonicalPath() + File.separator)) {
+            throw new IOException("Refusing to cache " + name + " outside of " + directory);
+        }
+        write(target, in, length);
+        return target;
+    }
+
+    /**
+     * Copies exactly length bytes of the stream into the file, or until the end of the stream if
+     * the length is -1. The bytes are written under a temporary name, synced, and then renamed into
+     * place, so that a reader never sees a partial file. The stream is left open.
+     */
+    static void write(File target, InputStream in, long length) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+
+        File temp = File.createTempFile("asset", ".tmp", parent);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long remaining = length;
+                int n;
+                while (remaining != 0 && (n = in.read(buffer, 0, remaining < 0 ? buffer.length : (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, n);
+                    if (remaining > 0) {
+                        remaining -= n;
+                    }
+                }
+                if (remaining > 0) {
+                    throw new IOException("Unexpected end of " + target.getName());
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to move " + temp + " to " + target);
+            }
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Failed to delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Writes the contents to the file the same way as {@link #write(File, InputStream, long)}.
+     */
+    static void write(File target, byte[] contents) throws IOException {
+        write(target, new ByteArrayInputStream(contents), contents.length);
+    }
+
+    /**
+     * Returns the theme's asset manifest, if one was saved for this version of the theme.
+     */
+    @Nullable
+    AssetManifest getManifest() {
+        return AssetManifest.read(new File(directory, FileProvider.PATH_MANIFEST));
+    }
+
+    /**
+     * Saves the theme's asset manifest, and moves across any file that the previous version of the
+     * theme had cached and that hasn't changed since. The previous version's directory is left
+     * for {@link #deleteStaleVersions}.
+     */
+    synchronized void putManifest(AssetManifest manifest) throws IOException {
+        File[] versions = packageDirectory.listFiles();
+        File previousDirectory = versions == null ? null : findPreviousVersion(versions);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        manifest.write(new File(directory, FileProvider.PATH_MANIFEST));
+
+        if (previousDirectory != null) {
+            carryOver(previousDirectory, manifest);
+        }
+    }
+
+    /**
+     * Moves every file that's identical in both versions of the theme out of the previous version's
+     * directory and into ours.
+     */
+    private void carryOver(File previousDirectory, AssetManifest manifest) {
+        AssetManifest previousManifest = AssetManifest.read(new File(previousDirectory, FileProvider.PATH_MANIFEST));
+        if (previousManifest == null) {
+            return;
+        }
+
+        for (AssetManifest.Asset previous : previousManifest.getAssets()) {
+            AssetManifest.Asset current = manifest.get(previous.path);
+            if (current == null || current.size != previous.size || !current.hash.equals(previous.hash)) {
+                continue;
+            }
+
+            File source = new File(previousDirectory, previous.path);
+            File target = new File(directory, previous.path);
+            if (source.length() != previous.size || target.exists()) {
+                continue;
+            }
+            File parent = target.getParentFile();
+            if ((parent.isDirectory() || parent.mkdirs()) && !source.renameTo(target)) {
+                Log.w(TAG, "Failed to move " + source + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Deletes the file, or the directory and everything in it.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+}
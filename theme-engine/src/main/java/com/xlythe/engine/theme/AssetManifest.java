@@ -0,0 +1,199 @@
+package com.xlythe.engine.theme;
+
+import android.content.res.AssetManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+import static com.xlythe.engine.theme.Theme.TAG;
+
+/**
+ * The path, size and content hash of every asset a theme's {@link FileProvider} serves. The
+ * provider builds it once per version of its .apk, and hosts fetch it once per theme so that they
+ * only ever ask for assets that exist.
+ */
+class AssetManifest {
+    private static final String[] COLUMNS = {FileProvider.COLUMN_PATH, FileProvider.COLUMN_SIZE, FileProvider.COLUMN_HASH};
+    // Some releases list the framework's own assets alongside ours at the root of the .apk.
+    private static final Set<String> FRAMEWORK_ROOTS = new HashSet<>(Arrays.asList("images", "sounds", "webkit"));
+
+    private final Map<String, Asset> assets;
+
+    private AssetManifest(Map<String, Asset> assets) {
+        this.assets = assets;
+    }
+
+    /**
+     * Walks every asset in the .apk, measuring and hashing each one. This reads every asset, so
+     * it must not be called on a thread anyone is waiting on.
+     */
+    static AssetManifest build(AssetManager assetManager) throws IOException {
+        Map<String, Asset> assets = new HashMap<>();
+        collect(assetManager, "", assets);
+        return new AssetManifest(assets);
+    }
+
+    private static void collect(AssetManager assetManager, String directory, Map<String, Asset> assets) throws IOException {
+        String[] children = assetManager.list(directory);
+        if (children == null) {
+            return;
+        }
+        for (String child : children) {
+            if (directory.isEmpty() && FRAMEWORK_ROOTS.contains(child)) {
+                continue;
+            }
+            String path = directory.isEmpty() ? child : directory + "/" + child;
+            InputStream in;
+            try {
+                in = assetManager.open(path);
+            } catch (IOException e) {
+                // Directories can't be opened, but they can be listed.
+                collect(assetManager, path, assets);
+                continue;
+            }
+            try {
+                assets.put(path, measure(path, in));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static Asset measure(String path, InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is unavailable", e);
+        }
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, n);
+            size += n;
+        }
+        return new Asset(path, size, toHex(digest.digest()));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a manifest returned by a FileProvider. Returns null if the provider predates manifests.
+     */
+    @Nullable
+    static AssetManifest read(Cursor cursor) {
+        int pathIndex = cursor.getColumnIndex(FileProvider.COLUMN_PATH);
+        int sizeIndex = cursor.getColumnIndex(FileProvider.COLUMN_SIZE);
+        int hashIndex = cursor.getColumnIndex(FileProvider.COLUMN_HASH);
+        if (pathIndex == -1 || sizeIndex == -1 || hashIndex == -1) {
+            return null;
+        }
+
+        Map<String, Asset> assets = new HashMap<>();
+        while (cursor.moveToNext()) {
+            String path = cursor.getString(pathIndex);
+            assets.put(path, new Asset(path, cursor.getLong(sizeIndex), cursor.getString(hashIndex)));
+        }
+        return new AssetManifest(assets);
+    }
+
+    /**
+     * Reads a manifest previously saved with {@link #write(File)}. Returns null if there isn't one.
+     */
+    @Nullable
+    static AssetManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Map<String, Asset> assets = new HashMap<>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split("\t");
+                    if (columns.length != 3) {
+                        return null;
+                    }
+                    assets.put(columns[0], new Asset(columns[0], Long.parseLong(columns[1]), columns[2]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+            return null;
+        }
+        return new AssetManifest(assets);
+    }
+
+    /**
+     * Saves the manifest to disk. The file is written under a temporary name and moved into place.
+     */
+    void write(File file) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (Asset asset : assets.values()) {
+            contents.append(asset.path).append('\t').append(asset.size).append('\t').append(asset.hash).append('\n');
+        }
+        AssetCache.write(file, contents.toString().getBytes("UTF-8"));
+    }
+
+    Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, assets.size());
+        for (Asset asset : assets.values()) {
+            cursor.addRow(new Object[]{asset.path, asset.size, asset.hash});
+        }
+        return cursor;
+    }
+
+    @Nullable
+    Asset get(String path) {
+        return assets.get(path);
+    }
+
+    Collection<Asset> getAssets() {
+        return assets.values();
+    }
+
+    static final class Asset {
+        final String path;
+        final long size;
+        final String hash;
+
+        private Asset(String path, long size, String hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Asset{path=%s, size=%s, hash=%s}", path, size, hash);
+        }
+    }
+}
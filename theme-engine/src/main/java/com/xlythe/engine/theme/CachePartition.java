@@ -0,0 +1,28 @@
+package com.xlythe.engine.theme;
+
+import android.content.res.ColorStateList;
+import android.graphics.Typeface;
+
+/**
+ * The values cached for one theme. Each {@link ResourceIndex} owns a partition, so forgetting a
+ * theme's index forgets everything that was cached for it, without looking at any other theme's
+ * entries. Drawables count against a {@link DrawableBudget} shared by every partition.
+ */
+class CachePartition {
+    final DrawableCache drawables;
+    final ValueCache<Integer> colors = new ValueCache<>(100);
+    final ValueCache<ColorStateList> colorStateLists = new ValueCache<>(100);
+    final ValueCache<Typeface> typefaces = new ValueCache<>(32);
+
+    CachePartition(DrawableBudget budget) {
+        this.drawables = new DrawableCache(budget);
+    }
+
+    /**
+     * Hands the partition's drawables back to the shared budget. The partition must not be used
+     * afterwards.
+     */
+    void release() {
+        drawables.release();
+    }
+}
@@ -0,0 +1,91 @@
+package com.xlythe.engine.theme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A byte budget shared by the drawable caches of every theme. When the drawables cached across all
+ * themes go over budget, the theme that was used least recently gives up its drawables first, so a
+ * theme that's no longer on screen can't crowd out the current one.
+ */
+class DrawableBudget {
+    private final List<DrawableCache> caches = new ArrayList<>();
+    private int maxSizeBytes;
+
+    DrawableBudget(int maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    synchronized void add(DrawableCache cache) {
+        caches.add(cache);
+    }
+
+    /**
+     * Stops counting the cache against the budget. Whatever it holds is freed along with it.
+     */
+    synchronized void remove(DrawableCache cache) {
+        caches.remove(cache);
+    }
+
+    synchronized int maxSize() {
+        return maxSizeBytes;
+    }
+
+    synchronized void resize(int maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+        trimToSize(maxSizeBytes);
+    }
+
+    /**
+     * Returns the bytes held by every cache.
+     */
+    synchronized int size() {
+        long size = 0;
+        for (DrawableCache cache : caches) {
+            size += cache.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Returns the number of drawables held by every cache.
+     */
+    synchronized int count() {
+        int count = 0;
+        for (DrawableCache cache : caches) {
+            count += cache.snapshot().size();
+        }
+        return count;
+    }
+
+    /**
+     * Brings the caches back within budget, after one of them has grown.
+     */
+    synchronized void trim() {
+        trimToSize(maxSizeBytes);
+    }
+
+    /**
+     * Evicts drawables until the caches hold at most maxSizeBytes between them. Caches are trimmed
+     * in order of when they were last used, and each cache evicts its own least recently used
+     * drawables first.
+     */
+    synchronized void trimToSize(int maxSizeBytes) {
+        int size = size();
+        while (size > maxSizeBytes) {
+            DrawableCache victim = null;
+            for (DrawableCache cache : caches) {
+                if (cache.size() > 0 && (victim == null || cache.getLastUsed() < victim.getLastUsed())) {
+                    victim = cache;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+
+            int before = victim.size();
+            victim.trimToSize(Math.max(0, before - (size - maxSizeBytes)));
+            size -= before - victim.size();
+        }
+    }
+}
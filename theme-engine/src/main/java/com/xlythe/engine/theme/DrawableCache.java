@@ -0,0 +1,133 @@
+package com.xlythe.engine.theme;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+/**
+ * Holds the ConstantStates of one theme's decoded drawables. Drawables are sized by an estimate of
+ * how many bytes each keeps alive, so a full screen background counts for more than an icon, and
+ * every theme's cache counts against one shared {@link DrawableBudget}.
+ */
+class DrawableCache extends LruCache<ResourceIndex.Entry, DrawableCache.Item> {
+    // Used for drawables that have no intrinsic size, such as colors and stretchable shapes.
+    private static final int DEFAULT_SIZE_BYTES = 4 * 1024;
+
+    private static final AtomicLong CLOCK = new AtomicLong();
+
+    private final DrawableBudget budget;
+    private volatile long lastUsed;
+    private volatile boolean released;
+
+    DrawableCache(DrawableBudget budget) {
+        // The budget decides when to evict, not the cache.
+        super(Integer.MAX_VALUE);
+        this.budget = budget;
+        budget.add(this);
+    }
+
+    /**
+     * Returns when the cache was last read or written to, relative to every other DrawableCache.
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Empties the cache and stops counting it against the budget. Drawables decoded for it
+     * afterwards aren't kept.
+     */
+    void release() {
+        released = true;
+        budget.remove(this);
+        evictAll();
+    }
+
+    /**
+     * Returns the cached ConstantState for the key, or null if it isn't cached.
+     */
+    @Nullable
+    Drawable.ConstantState getConstantState(ResourceIndex.Entry key) {
+        lastUsed = CLOCK.incrementAndGet();
+        Item item = get(key);
+        return item == null ? null : item.state;
+    }
+
+    /**
+     * Caches the drawable's ConstantState. Returns the ConstantState, or null if the drawable
+     * doesn't have one and so can't be shared.
+     */
+    @Nullable
+    Drawable.ConstantState putDrawable(ResourceIndex.Entry key, Drawable drawable) {
+        return putDrawable(key, drawable, true);
+    }
+
+    /**
+     * Like {@link #putDrawable(ResourceIndex.Entry, Drawable)}, but if trim is false, the budget
+     * may be left over its limit until the caller calls {@link #trimBudget}. Used to put back a
+     * batch of drawables without any of them evicting the others.
+     */
+    @Nullable
+    Drawable.ConstantState putDrawable(ResourceIndex.Entry key, Drawable drawable, boolean trim) {
+        Drawable.ConstantState state = drawable.getConstantState();
+        if (state == null) {
+            return null;
+        }
+        if (released) {
+            // A load that was running when the theme was dropped.
+            return state;
+        }
+        lastUsed = CLOCK.incrementAndGet();
+        put(key, new Item(state, estimateSize(drawable)));
+        if (trim) {
+            budget.trim();
+        }
+        return state;
+    }
+
+    /**
+     * Evicts drawables, from whichever caches were used least recently, until the shared budget
+     * is back within its limit.
+     */
+    void trimBudget() {
+        budget.trim();
+    }
+
+    @Override
+    protected int sizeOf(ResourceIndex.Entry key, Item item) {
+        return item.bytes;
+    }
+
+    static int estimateSize(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return Build.VERSION.SDK_INT >= 19 ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+            }
+        }
+
+        // Vectors, nine patches and the like are rasterized at roughly their intrinsic size.
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            return (int) Math.min(Integer.MAX_VALUE, 4L * width * height);
+        }
+        return DEFAULT_SIZE_BYTES;
+    }
+
+    static final class Item {
+        final Drawable.ConstantState state;
+        final int bytes;
+
+        private Item(Drawable.ConstantState state, int bytes) {
+            this.state = state;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,23 +1,41 @@
 package com.xlythe.engine.theme;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 
@@ -27,9 +45,84 @@ import static com.xlythe.engine.theme.Theme.TAG;
  * A very simple content provider that can serve arbitrary asset files from our .apk.
  */
 public class FileProvider extends ContentProvider implements PipeDataWriter<InputStream> {
+    /**
+     * Pass to {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} to read
+     * metrics about the assets that have been piped to callers.
+     */
+    public static final String METHOD_GET_TRANSFER_METRICS = "getTransferMetrics";
+    public static final String KEY_TRANSFER_COUNT = "transfer_count";
+    public static final String KEY_TRANSFER_BYTES = "transfer_bytes";
+    public static final String KEY_TRANSFER_DURATION_MILLIS = "transfer_duration_millis";
+    public static final String KEY_QUEUE_WAIT_MILLIS = "queue_wait_millis";
+    public static final String KEY_REJECTED_COUNT = "rejected_count";
+
+    /**
+     * Query this path to get a manifest of every asset we serve, with one row per asset holding
+     * {@link #COLUMN_PATH}, {@link #COLUMN_SIZE} and {@link #COLUMN_HASH}. Files starting with a
+     * dot are never packaged as assets, so this can't collide with a real asset.
+     */
+    public static final String PATH_MANIFEST = ".manifest";
+    public static final String COLUMN_PATH = "path";
+    public static final String COLUMN_SIZE = OpenableColumns.SIZE;
+    public static final String COLUMN_HASH = "hash";
+
+    /**
+     * Open this path to stream several assets through a single pipe. Name each asset with a
+     * {@link #QUERY_PARAMETER_ASSET} query parameter. Each requested asset is written, in order, as
+     * its path (in {@link java.io.DataOutputStream#writeUTF(String)} format), followed by its
+     * length as a long (or -1 if we don't have it), followed by that many bytes.
+     */
+    public static final String PATH_BUNDLE = ".bundle";
+    public static final String QUERY_PARAMETER_ASSET = "asset";
+
+    private static final String EXTRACTED_ASSET_DIRECTORY = "theme_assets";
+
+    private final AtomicLong transferCount = new AtomicLong();
+    private final AtomicLong transferBytes = new AtomicLong();
+    private final AtomicLong transferDurationMillis = new AtomicLong();
+    private final AtomicLong queueWaitMillis = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    // The package name of each caller that we've verified, keyed by its uid.
+    private final SparseArray<String> verifiedCallers = new SparseArray<>();
+    // The length of each asset we've been asked about, or -1 if we don't have it.
+    private final Map<String, Long> assetLengths = new HashMap<>();
+
+    private File extractedAssetDirectory;
+    // Built (or read back) in the background when we're created, and null until then.
+    private volatile AssetManifest assetManifest;
+    private ThreadPoolExecutor transferExecutor;
 
     @Override
     public boolean onCreate() {
+        // A caller that was a registered host may stop being one (or a new app may take over its uid)
+        // whenever packages change, so forget everyone we've verified.
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addDataScheme("package");
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                synchronized (verifiedCallers) {
+                    verifiedCallers.clear();
+                }
+            }
+        }, intentFilter);
+
+        // Hashing every asset takes a while, so it's done ahead of the first request for the
+        // manifest rather than while a caller waits on it.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadAssetManifest();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to build the asset manifest", e);
+                }
+            }
+        }, "AssetManifest").start();
         return true;
     }
 
@@ -38,6 +131,12 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
         // Security
         verifyCaller();
 
+        if (("/" + PATH_MANIFEST).equals(uri.getPath())) {
+            AssetManifest manifest = assetManifest;
+            // Until it's ready, callers fall back to asking for assets one at a time.
+            return manifest == null ? null : manifest.toCursor();
+        }
+
         // content providers that support open and openAssetFile should support queries for all
         // android.provider.OpenableColumns.
         int displayNameIndex = -1;
@@ -61,7 +160,8 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
                 result[i] = uri.getPath();
             }
             if (i == sizeIndex) {
-                result[i] = null; // Size is unknown, so null, if it was known, it would go here.
+                long length = getAssetLength(uri.getPath().substring(1));
+                result[i] = length < 0 ? null : length;
             }
         }
         cursor.addRow(result);
@@ -94,26 +194,149 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
 
     @Override
     public AssetFileDescriptor openAssetFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        String path = uri.getPath().substring(1);
+
+        if (PATH_BUNDLE.equals(path)) {
+            try {
+                return new AssetFileDescriptor(openPipe(uri, uri.getQueryParameters(QUERY_PARAMETER_ASSET), new BundleWriter()), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open " + uri, e);
+                throw new FileNotFoundException("Unable to open " + uri);
+            }
+        }
+
+        try {
+            return openSeekableAsset(path);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Unable to open " + uri, e);
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to extract " + uri + ". Falling back to a pipe.", e);
+        }
+
         // Try to open an asset with the given name.
         try {
-            InputStream is = getContext().getAssets().open(uri.getPath().substring(1));
-            // Start a new thread that pipes the stream data back to the caller.
-            return new AssetFileDescriptor(openPipeHelper(uri, getType(uri), null, is, this), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            InputStream is = getContext().getAssets().open(path);
+            // Pipe the stream data back to the caller from a background thread.
+            return new AssetFileDescriptor(openPipe(uri, is, this), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         } catch (IOException e) {
             Log.e(TAG, "Unable to open " + uri, e);
             throw new FileNotFoundException("Unable to open " + uri);
         }
     }
 
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (METHOD_GET_TRANSFER_METRICS.equals(method)) {
+            // Security
+            verifyCaller();
+
+            Bundle metrics = new Bundle();
+            metrics.putLong(KEY_TRANSFER_COUNT, transferCount.get());
+            metrics.putLong(KEY_TRANSFER_BYTES, transferBytes.get());
+            metrics.putLong(KEY_TRANSFER_DURATION_MILLIS, transferDurationMillis.get());
+            metrics.putLong(KEY_QUEUE_WAIT_MILLIS, queueWaitMillis.get());
+            metrics.putLong(KEY_REJECTED_COUNT, rejectedCount.get());
+            return metrics;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * The size of the buffer used to copy an asset into a pipe. Override to tune.
+     */
+    protected int getTransferBufferSize() {
+        return 8192;
+    }
+
+    /**
+     * The number of threads that copy assets into pipes. Override to tune.
+     */
+    protected int getTransferThreadCount() {
+        return 2;
+    }
+
+    /**
+     * The number of pipe transfers that may wait for a thread before new requests fall back to a
+     * thread of their own. Override to tune.
+     */
+    protected int getTransferQueueSize() {
+        return 16;
+    }
+
+    /**
+     * Opens an asset as a seekable descriptor with a known length. Assets that are stored
+     * uncompressed are handed back as a slice of our .apk, which the caller can read or mmap
+     * directly. Compressed assets are inflated once into our files dir, and served from there.
+     *
+     * Throws a FileNotFoundException if we don't have the asset, or an IOException if it couldn't
+     * be extracted.
+     */
+    private AssetFileDescriptor openSeekableAsset(String path) throws IOException {
+        try {
+            return getContext().getAssets().openFd(path);
+        } catch (IOException e) {
+            // The asset is compressed (or missing).
+        }
+
+        File file = getExtractedAsset(path);
+        return new AssetFileDescriptor(ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY), 0, file.length());
+    }
+
+    /**
+     * Returns the read side of a pipe, and has the writer fill the other side on our transfer
+     * executor. If the executor is saturated, we fall back to {@link #openPipeHelper}.
+     */
+    private <T> ParcelFileDescriptor openPipe(final Uri uri, final T args, final PipeDataWriter<T> writer) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final long queuedAt = SystemClock.elapsedRealtime();
+        try {
+            getTransferExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    queueWaitMillis.addAndGet(SystemClock.elapsedRealtime() - queuedAt);
+                    try {
+                        writer.writeDataToPipe(pipe[1], uri, getType(uri), null, args);
+                    } finally {
+                        try {
+                            pipe[1].close();
+                        } catch (IOException e) {
+                            // Already closed
+                        }
+                    }
+                }
+            });
+            return pipe[0];
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            pipe[0].close();
+            pipe[1].close();
+            return openPipeHelper(uri, getType(uri), null, args, writer);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getTransferExecutor() {
+        if (transferExecutor == null) {
+            int threads = getTransferThreadCount();
+            transferExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(getTransferQueueSize()));
+            transferExecutor.allowCoreThreadTimeOut(true);
+        }
+        return transferExecutor;
+    }
+
     @Override
     public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri, @NonNull String mimeType, Bundle opts, InputStream args) {
         // Transfer data from the asset to the pipe the client is reading.
-        byte[] buffer = new byte[8192];
+        long startTime = SystemClock.elapsedRealtime();
+        long bytes = 0;
+        byte[] buffer = new byte[getTransferBufferSize()];
         int n;
         FileOutputStream outputStream = new FileOutputStream(output.getFileDescriptor());
         try {
             while ((n = args.read(buffer)) >= 0) {
                 outputStream.write(buffer, 0, n);
+                bytes += n;
             }
         } catch (IOException e) {
             Log.e(TAG, "Failed transferring", e);
@@ -128,7 +351,196 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
             } catch (IOException e) {
                 Log.e(TAG, "Failed to close output stream", e);
             }
+            recordTransfer(bytes, startTime);
+        }
+    }
+
+    private void recordTransfer(long bytes, long startTime) {
+        transferCount.incrementAndGet();
+        transferBytes.addAndGet(bytes);
+        transferDurationMillis.addAndGet(SystemClock.elapsedRealtime() - startTime);
+    }
+
+    /**
+     * Writes several assets into one pipe, using the framing described in {@link #PATH_BUNDLE}.
+     */
+    private class BundleWriter implements PipeDataWriter<List<String>> {
+        @Override
+        public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri, @NonNull String mimeType, Bundle opts, List<String> paths) {
+            long startTime = SystemClock.elapsedRealtime();
+            long bytes = 0;
+            byte[] buffer = new byte[getTransferBufferSize()];
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output.getFileDescriptor()), buffer.length));
+            try {
+                for (String path : paths) {
+                    AssetFileDescriptor afd;
+                    try {
+                        afd = openSeekableAsset(path);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to open " + path + " for a bundle", e);
+                        outputStream.writeUTF(path);
+                        outputStream.writeLong(-1);
+                        continue;
+                    }
+
+                    try {
+                        long length = afd.getLength();
+                        outputStream.writeUTF(path);
+                        outputStream.writeLong(length);
+                        InputStream in = afd.createInputStream();
+                        long remaining = length;
+                        int n;
+                        while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+                            outputStream.write(buffer, 0, n);
+                            remaining -= n;
+                        }
+                        if (remaining > 0) {
+                            throw new IOException("Unexpected end of " + path);
+                        }
+                        bytes += length;
+                    } finally {
+                        afd.close();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed transferring", e);
+            } finally {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close output stream", e);
+                }
+                recordTransfer(bytes, startTime);
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the asset in bytes, or -1 if we don't have it. Lengths are remembered
+     * for the life of the process, which never outlives this version of our .apk.
+     */
+    private long getAssetLength(String path) {
+        synchronized (assetLengths) {
+            Long length = assetLengths.get(path);
+            if (length != null) {
+                return length;
+            }
+        }
+
+        long length = measureAsset(path);
+        synchronized (assetLengths) {
+            assetLengths.put(path, length);
+        }
+        return length;
+    }
+
+    private long measureAsset(String path) {
+        // Uncompressed assets know their own length.
+        try {
+            AssetFileDescriptor afd = getContext().getAssets().openFd(path);
+            try {
+                return afd.getLength();
+            } finally {
+                afd.close();
+            }
+        } catch (IOException e) {
+            // The asset is compressed (or missing).
+        }
+
+        // If we've already built the manifest, it knows the length of every asset.
+        AssetManifest manifest = assetManifest;
+        if (manifest != null) {
+            AssetManifest.Asset asset = manifest.get(path);
+            return asset == null ? -1 : asset.size;
+        }
+
+        // Otherwise, measure the asset by extracting it. That only happens once per version of our
+        // .apk, and the copy is what we'll serve if the caller goes on to open it.
+        try {
+            return getExtractedAsset(path).length();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a copy of the asset in our files dir, inflating it first if this version of the .apk
+     * hasn't been asked for it before. Throws a FileNotFoundException if there's no such asset.
+     */
+    private File getExtractedAsset(String path) throws IOException {
+        File directory = getExtractedAssetDirectory();
+        File file = new File(directory, path);
+        // Dot files are never packaged as assets, and our own bookkeeping files start with a dot.
+        if (file.getName().startsWith(".")
+                || !file.getCanonicalPath().startsWith(directory.getCanonicalPath() + File.separator)) {
+            throw new FileNotFoundException("Invalid path " + path);
+        }
+        if (file.isFile()) {
+            return file;
+        }
+
+        // The file is moved into place once it's complete, so a concurrent request never sees a
+        // partial file.
+        InputStream in = getContext().getAssets().open(path);
+        try {
+            AssetCache.write(file, in, -1);
+            return file;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the manifest of our assets. It's built once per version of our .apk and saved
+     * alongside the extracted assets, so later processes can read it back instead of rehashing.
+     */
+    private void loadAssetManifest() throws IOException {
+        File directory = getExtractedAssetDirectory();
+        File file = new File(directory, PATH_MANIFEST);
+        AssetManifest manifest = AssetManifest.read(file);
+        if (manifest == null) {
+            manifest = AssetManifest.build(getContext().getAssets());
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Failed to create " + directory);
+                }
+                manifest.write(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save the asset manifest", e);
+            }
+        }
+        assetManifest = manifest;
+    }
+
+    /**
+     * Returns the directory extracted assets are kept in. It's keyed by the time our .apk was last
+     * updated, and the directories of previous versions are deleted the first time it's asked for.
+     */
+    private synchronized File getExtractedAssetDirectory() throws IOException {
+        if (extractedAssetDirectory != null) {
+            return extractedAssetDirectory;
+        }
+
+        long lastUpdateTime;
+        try {
+            lastUpdateTime = getContext().getPackageManager().getPackageInfo(getContext().getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Unable to find our own package", e);
+        }
+
+        File root = new File(getContext().getFilesDir(), EXTRACTED_ASSET_DIRECTORY);
+        String version = Long.toString(lastUpdateTime);
+        File[] versions = root.listFiles();
+        if (versions != null) {
+            for (File file : versions) {
+                if (!file.getName().equals(version)) {
+                    AssetCache.delete(file);
+                }
+            }
         }
+
+        extractedAssetDirectory = new File(root, version);
+        return extractedAssetDirectory;
     }
 
     /**
@@ -139,19 +551,22 @@ public class FileProvider extends ContentProvider implements PipeDataWriter<Inpu
             return;
         }
 
-        // We'll query for ourselves to see if we show up as an available theme for this caller.
-        String packageOverride = Theme.getPackageOverride();
-        try {
-            Theme.setPackageOverride(getCallingPackage());
-            List<App> apps = Theme.getApps(getContext());
-            for (App app : apps) {
-                if (app.getPackageName().equals(getContext().getPackageName())) {
+        int uid = Binder.getCallingUid();
+        String callingPackage = getCallingPackage();
+        if (callingPackage != null) {
+            synchronized (verifiedCallers) {
+                if (callingPackage.equals(verifiedCallers.get(uid))) {
                     return;
                 }
             }
-        } finally {
-            // Restore the original override (which may have been null)
-            Theme.setPackageOverride(packageOverride);
+
+            // We'll query for ourselves to see if we show up as an available theme for this caller.
+            if (Theme.isTheme(getContext(), callingPackage, getContext().getPackageName())) {
+                synchronized (verifiedCallers) {
+                    verifiedCallers.put(uid, callingPackage);
+                }
+                return;
+            }
         }
 
         // If we got here, then we couldn't verify the caller.
@@ -0,0 +1,97 @@
+package com.xlythe.engine.theme;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Collapses concurrent loads of the same key into one. The first caller to ask for a key runs the
+ * load, and anyone else who asks for it while that's in progress waits for and shares its result.
+ * A caller that asks again for a key it's already loading (eg. from inside the load) runs the load
+ * itself instead of waiting on itself.
+ */
+class InFlightLoads<K, V> {
+    interface Loader<V> {
+        @Nullable
+        V load();
+    }
+
+    private final ConcurrentMap<K, Call<V>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount;
+
+    /**
+     * @param coalescedCount Incremented every time a caller shares a load instead of running its own.
+     */
+    InFlightLoads(AtomicLong coalescedCount) {
+        this.coalescedCount = coalescedCount;
+    }
+
+    @Nullable
+    V load(K key, Loader<V> loader) {
+        Call<V> call = calls.get(key);
+        if (call == null) {
+            Call<V> newCall = new Call<>();
+            call = calls.putIfAbsent(key, newCall);
+            if (call == null) {
+                return run(key, newCall, loader);
+            }
+        }
+
+        if (call.thread == Thread.currentThread()) {
+            return loader.load();
+        }
+        coalescedCount.incrementAndGet();
+        return call.await();
+    }
+
+    private V run(K key, Call<V> call, Loader<V> loader) {
+        try {
+            V value = loader.load();
+            call.finish(value, null);
+            return value;
+        } catch (RuntimeException | Error e) {
+            // Waiters see the same failure, rather than waiting forever.
+            call.finish(null, e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    private static final class Call<V> {
+        final Thread thread = Thread.currentThread();
+        private boolean done;
+        private V value;
+        private Throwable error;
+
+        synchronized void finish(V value, Throwable error) {
+            this.value = value;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized V await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.xlythe.engine.theme;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Maps a resource (type, name) pair to its id inside the theme apk and to the id of the same
+ * resource inside the host app. Each pair is resolved with Resources.getIdentifier exactly once,
+ * after which every lookup is a single probe into an open addressed hash table.
+ *
+ * Entries are unique per (type, name) within an index, which lets them double as allocation free
+ * keys for the index's own value caches.
+ *
+ * Lookups don't lock. Writers hold the index's lock and publish a resized table through a volatile
+ * field. A reader racing a writer may miss an entry that's being added, in which case it falls back
+ * to {@link #put}, which checks again under the lock.
+ */
+class ResourceIndex {
+    // Must be a power of two.
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String hostPackageName;
+    private final String themePackageName;
+    private final CachePartition caches;
+
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    ResourceIndex(String hostPackageName, String themePackageName, CachePartition caches) {
+        this.hostPackageName = hostPackageName;
+        this.themePackageName = themePackageName;
+        this.caches = caches;
+    }
+
+    /**
+     * Returns true if this index was built for the given host and theme packages.
+     */
+    boolean isFor(String hostPackageName, String themePackageName) {
+        return TextUtils.equals(this.hostPackageName, hostPackageName)
+                && TextUtils.equals(this.themePackageName, themePackageName);
+    }
+
+    String getThemePackageName() {
+        return themePackageName;
+    }
+
+    /**
+     * The values cached for this index's entries.
+     */
+    CachePartition getCaches() {
+        return caches;
+    }
+
+    /**
+     * Returns the resolved entry for the resource, or null if it hasn't been resolved yet.
+     */
+    @Nullable
+    Entry get(String type, String name) {
+        Entry[] table = this.table;
+        int mask = table.length - 1;
+        int hash = hash(type, name);
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.matches(hash, type, name)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Records the resolved ids for the resource. An id of 0 means the resource doesn't exist in
+     * that package.
+     */
+    synchronized Entry put(String type, String name, int themeId, int hostId) {
+        Entry existing = get(type, name);
+        if (existing != null) {
+            return existing;
+        }
+
+        if ((size + 1) * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+
+        // Entry's fields are final, so a reader that sees it in the table sees it fully built.
+        Entry entry = new Entry(themePackageName, caches, type, name, themeId, hostId);
+        insert(table, entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Returns every entry that's been resolved so far.
+     */
+    List<Entry> getEntries() {
+        Entry[] table = this.table;
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : table) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private void resize(int capacity) {
+        Entry[] newTable = new Entry[capacity];
+        for (Entry entry : table) {
+            if (entry != null) {
+                insert(newTable, entry);
+            }
+        }
+        // Publish the new table only once it's full, so readers never probe a partial one.
+        table = newTable;
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    private static int hash(String type, String name) {
+        // Strings cache their hash codes, so this doesn't touch the characters after the first call.
+        int h = type.hashCode() * 31 + name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static final class Entry {
+        // Set once we've looked for a font file with this name in the theme's FileProvider and
+        // found nothing.
+        static final int FLAG_NOT_IN_THEME_ASSETS = 1;
+        // Set once we've looked for a font file with this name in the host's assets and found nothing.
+        static final int FLAG_NOT_IN_HOST_ASSETS = 1 << 1;
+
+        private static final AtomicIntegerFieldUpdater<Entry> FLAGS_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "flags");
+
+        final String themePackageName;
+        final CachePartition caches;
+        final String type;
+        final String name;
+        final int themeId;
+        final int hostId;
+        private final int hash;
+        private volatile int flags;
+
+        private Entry(String themePackageName, CachePartition caches, String type, String name, int themeId, int hostId) {
+            this.themePackageName = themePackageName;
+            this.caches = caches;
+            this.type = type;
+            this.name = name;
+            this.themeId = themeId;
+            this.hostId = hostId;
+            this.hash = hash(type, name);
+        }
+
+        boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        void addFlag(int flag) {
+            int current;
+            do {
+                current = flags;
+            } while (!FLAGS_UPDATER.compareAndSet(this, current, current | flag));
+        }
+
+        private boolean matches(int hash, String type, String name) {
+            return this.hash == hash && this.name.equals(name) && this.type.equals(type);
+        }
+
+        // Entries are never duplicated within an index, so identity equality is enough.
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Entry{name=%s, type=%s, themeId=%s, hostId=%s}", name, type, themeId, hostId);
+        }
+    }
+}
@@ -1,46 +1,74 @@
 package com.xlythe.engine.theme;
 
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Typeface;
+import android.graphics.fonts.Font;
+import android.graphics.fonts.FontFamily;
 import android.graphics.drawable.Drawable;
 import android.media.MediaPlayer;
 import android.media.SoundPool;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.AnyRes;
+import androidx.annotation.AnyThread;
 import androidx.annotation.BoolRes;
 import androidx.annotation.ColorRes;
 import androidx.annotation.DimenRes;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.FontRes;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.annotation.UiThread;
-import androidx.collection.LruCache;
+import androidx.core.content.pm.PackageInfoCompat;
 
 public class Theme {
     public static final String COLOR = "color";
@@ -53,42 +81,83 @@ public class Theme {
 
     static final String TAG = "Theme";
 
-    private static final Map<String, Typeface> TYPEFACE_MAP = new HashMap<>();
-    private static final LruCache<String, Drawable> DRAWABLE_MAP = new LruCache<>(100);
-    private static final LruCache<String, Integer> COLOR_MAP = new LruCache<>(100);
-    private static final LruCache<String, ColorStateList> COLOR_STATE_LIST_MAP = new LruCache<>(100);
-    private static String sPackageName;
-    private static String sPackageOverride;
-
-    private static Map<String, BroadcastReceiver> sAppTrackingReceivers = new HashMap<>();
+    private static final String[] FONT_EXTENSIONS = {".ttf", ".otf"};
+
+    // Values are cached in the CachePartition of the theme's index, keyed by index entries, which
+    // are unique per (theme package, type, name) and can be looked up without allocating.
+    // By default, decoded drawables across all themes may use up to 1/8th of the app's memory class.
+    private static final float DEFAULT_DRAWABLE_CACHE_FRACTION = 1f / 8;
+    private static final ConcurrentMap<String, ResourceIndex> RESOURCE_INDEX_MAP = new ConcurrentHashMap<>();
+    // Fetching another package's Resources or Context is an IPC, so we hold onto them until the
+    // package changes or the configuration does.
+    private static final ConcurrentMap<String, Resources> RESOURCES_MAP = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Context> CONTEXT_MAP = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AssetCache> ASSET_CACHE_MAP = new ConcurrentHashMap<>();
+    // A null manifest means the theme's FileProvider can't give us one, and we have to probe for assets.
+    private static final Map<String, AssetManifest> ASSET_MANIFEST_MAP = Collections.synchronizedMap(new HashMap<String, AssetManifest>());
+    private static volatile DrawableBudget sDrawableBudget;
+    private static volatile float sDrawableCacheFraction = DEFAULT_DRAWABLE_CACHE_FRACTION;
+    // If set, overrides sDrawableCacheFraction with a fixed number of bytes.
+    private static volatile int sDrawableCacheSize = -1;
+    // The themes that were most recently current, most recent first. Their indexes and cached
+    // values are kept warm, so switching back to one is served from memory. Older themes are dropped.
+    private static final LinkedList<ResourceIndex> RECENT_INDEXES = new LinkedList<>();
+    private static final int DEFAULT_RECENT_THEME_COUNT = 3;
+    private static int sRecentThemeCount = DEFAULT_RECENT_THEME_COUNT;
+    // Bumped by every call to setPackageName and setPackageNameAsync, so that only the latest switch
+    // is applied.
+    private static final AtomicInteger THEME_SWITCH_GENERATION = new AtomicInteger();
+    // The number of most recently used fonts that survive a critical memory trim.
+    private static final int HOT_FONT_COUNT = 2;
+    private static final TrimStats TRIM_STATS = new TrimStats();
+    // The package is read once per lookup, so a lookup that races setPackageName resolves entirely
+    // against either the old theme or the new one.
+    private static volatile String sPackageName;
+    private static volatile String sPackageOverride;
+    private static volatile ResourceIndex sResourceIndex;
+    private static volatile boolean sComponentCallbacksRegistered;
+    private static Executor sBackgroundExecutor;
+    private static final int MAX_BACKGROUND_THREAD_COUNT = 4;
+
+    // The themes installed for each host, as of the last time we looked. Keyed by the host's THEME action.
+    private static final ConcurrentMap<String, ThemeCatalog> CATALOG_MAP = new ConcurrentHashMap<>();
+    private static boolean sCatalogReceiverRegistered;
+
+    // Concurrent requests for the same resource share one load, so a list inflating thirty rows
+    // with the same background decodes it once. Colors and ColorStateLists share entries, so each
+    // kind of value gets its own table.
+    private static final AtomicLong COALESCED_LOAD_COUNT = new AtomicLong();
+    private static final InFlightLoads<ResourceIndex.Entry, Drawable.ConstantState> DRAWABLE_LOADS = new InFlightLoads<>(COALESCED_LOAD_COUNT);
+    private static final InFlightLoads<ResourceIndex.Entry, Integer> COLOR_LOADS = new InFlightLoads<>(COALESCED_LOAD_COUNT);
+    private static final InFlightLoads<ResourceIndex.Entry, ColorStateList> COLOR_STATE_LIST_LOADS = new InFlightLoads<>(COALESCED_LOAD_COUNT);
+    private static final InFlightLoads<ResourceIndex.Entry, Typeface> FONT_LOADS = new InFlightLoads<>(COALESCED_LOAD_COUNT);
+
+    // Res are immutable and only depend on the host's resource id, so they're shared process-wide.
+    // Lookups read the current map without locking. Adding a Res copies the map and publishes the copy.
+    private static volatile SparseArray<Res> sResMap = new SparseArray<>();
+    private static final Object RES_MAP_LOCK = new Object();
+
+    private static final Map<String, BroadcastReceiver> sAppTrackingReceivers = new HashMap<>();
 
     private static void clearCacheForPackage(Context context, String packageName) {
-        String prefix = getKey(context, packageName) + "_";
-        remove(TYPEFACE_MAP, prefix);
-        remove(DRAWABLE_MAP, prefix);
-        remove(COLOR_MAP, prefix);
-        remove(COLOR_STATE_LIST_MAP, prefix);
-        Log.d(TAG, String.format("Cache cleared for %s", packageName));
-    }
-
-    private static void remove(Map<String, ?> cache, String prefix) {
-        Set<String> keysToRemove = new HashSet<>();
-        for (String key : cache.keySet()) {
-            if (key.startsWith(prefix)) {
-                keysToRemove.add(key);
+        RESOURCES_MAP.remove(packageName);
+        CONTEXT_MAP.remove(packageName);
+        ASSET_CACHE_MAP.remove(packageName);
+        ASSET_MANIFEST_MAP.remove(packageName);
+        // Everything cached for the theme lives in its index's partition, so it goes with the index.
+        ResourceIndex index = RESOURCE_INDEX_MAP.remove(getKey(context, packageName));
+        if (index != null) {
+            index.getCaches().release();
+            synchronized (RECENT_INDEXES) {
+                RECENT_INDEXES.remove(index);
             }
         }
-        for (String key : keysToRemove) {
-            cache.remove(key);
-        }
-    }
-
-    private static void remove(LruCache<String, ?> cache, String prefix) {
-        for (String key : cache.snapshot().keySet()) {
-            if (key.startsWith(prefix)) {
-                cache.remove(key);
-            }
+        if (index != null && sResourceIndex == index) {
+            sResourceIndex = null;
+            // The current theme was reinstalled, so its resources may have changed.
+            ThemedViews.requestApplyTheme();
         }
+        Log.d(TAG, String.format("Cache cleared for %s", packageName));
     }
 
     /**
@@ -96,20 +165,31 @@ public class Theme {
      *
      * @param packageOverride The package name of the app you're proxying
      */
-    @UiThread
+    @AnyThread
     public static void setPackageOverride(String packageOverride) {
         sPackageOverride = packageOverride;
     }
 
-    @UiThread
-    static String getPackageOverride() {
-        return sPackageOverride;
+    @AnyThread
+    public static Context getThemeContext(Context context) {
+        return getThemeContext(context, getPackageName());
     }
 
-    @UiThread
-    public static Context getThemeContext(Context context) {
+    private static Context getThemeContext(Context context, String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+        Context themeContext = CONTEXT_MAP.get(packageName);
+        if (themeContext != null) {
+            return themeContext;
+        }
+
         try {
-            return context.createPackageContext(getPackageName(), Context.CONTEXT_INCLUDE_CODE + Context.CONTEXT_IGNORE_SECURITY);
+            themeContext = context.getApplicationContext().createPackageContext(packageName, Context.CONTEXT_INCLUDE_CODE + Context.CONTEXT_IGNORE_SECURITY);
+            registerReinstallReceiver(context, packageName);
+            registerComponentCallbacks(context);
+            Context existing = CONTEXT_MAP.putIfAbsent(packageName, themeContext);
+            return existing != null ? existing : themeContext;
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Failed to create a context", e);
         }
@@ -119,25 +199,44 @@ public class Theme {
     /**
      * Grabs the Resources from packageName
      */
-    @UiThread
+    @AnyThread
     public static Resources getResources(Context context) {
-        try {
-            Resources resources = context.getPackageManager().getResourcesForApplication(getPackageName());
-            registerReinstallReceiver(context, getPackageName());
+        return getResources(context, getPackageName());
+    }
+
+    private static Resources getResources(Context context, String packageName) {
+        if (packageName == null) {
+            return context.getResources();
+        }
+        Resources resources = RESOURCES_MAP.get(packageName);
+        if (resources != null) {
             return resources;
+        }
+
+        try {
+            resources = context.getPackageManager().getResourcesForApplication(packageName);
+            registerReinstallReceiver(context, packageName);
+            registerComponentCallbacks(context);
+            Resources existing = RESOURCES_MAP.putIfAbsent(packageName, resources);
+            return existing != null ? existing : resources;
         } catch (NameNotFoundException e) {
-            Log.e(TAG, "Failed to get " + getPackageName() + "'s resources. Returning resources from the context instead.", e);
+            Log.e(TAG, "Failed to get " + packageName + "'s resources. Returning resources from the context instead.", e);
             return context.getResources();
         }
     }
 
     // When a theme package is reinstalled, we need to clear our caches of any stale resources from that app.
     private static void registerReinstallReceiver(Context context, final String packageName) {
-        if (sAppTrackingReceivers.containsKey(packageName)) {
-            // Already tracking this app. Ignore.
-            return;
+        synchronized (sAppTrackingReceivers) {
+            if (sAppTrackingReceivers.containsKey(packageName)) {
+                // Already tracking this app. Ignore.
+                return;
+            }
+            registerReinstallReceiverLocked(context, packageName);
         }
+    }
 
+    private static void registerReinstallReceiverLocked(Context context, final String packageName) {
         BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -146,16 +245,24 @@ public class Theme {
                     // Ignored. Wrong app.
                     return;
                 }
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    // The first half of an update. We'll clear our caches once the new version is added,
+                    // and until then the old Resources keep working.
+                    return;
+                }
 
                 clearCacheForPackage(context, packageName);
                 context.getApplicationContext().unregisterReceiver(this);
-                sAppTrackingReceivers.remove(packageName);
+                synchronized (sAppTrackingReceivers) {
+                    sAppTrackingReceivers.remove(packageName);
+                }
             }
         };
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
         intentFilter.addAction(Intent.ACTION_PACKAGE_INSTALL);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
         intentFilter.addDataScheme("package");
 
         context.getApplicationContext().registerReceiver(broadcastReceiver, intentFilter);
@@ -163,19 +270,234 @@ public class Theme {
         Log.d(TAG, String.format("Registered app listener for %s", packageName));
     }
 
+    // When the configuration changes, the theme's Resources need to be reloaded to pick up the new qualifiers.
+    // When memory runs low, we give back what we've cached.
+    private static synchronized void registerComponentCallbacks(Context context) {
+        if (sComponentCallbacksRegistered) {
+            return;
+        }
+
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                RESOURCES_MAP.clear();
+                CONTEXT_MAP.clear();
+                // Values resolved under the old configuration (eg. night mode or density) are stale
+                // too. Fonts don't depend on the configuration, so they're kept.
+                for (ResourceIndex index : RESOURCE_INDEX_MAP.values()) {
+                    CachePartition caches = index.getCaches();
+                    caches.drawables.evictAll();
+                    caches.colors.evictAll();
+                    caches.colorStateLists.evictAll();
+                }
+                // Theme names are localized, so a catalog read under other locales is read again.
+                for (Map.Entry<String, ThemeCatalog> entry : CATALOG_MAP.entrySet()) {
+                    if (!entry.getValue().isLocalizedFor(newConfig)) {
+                        CATALOG_MAP.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+                Log.d(TAG, "Configuration changed. Theme resources will be reloaded.");
+            }
+
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+        sComponentCallbacksRegistered = true;
+    }
+
+    /**
+     * Drops cached resources in tiers. Decoded drawables go first, once the UI is hidden or memory is
+     * running low. Colors and all but the hottest fonts follow when memory is critical.
+     */
+    private static void trimMemory(int level) {
+        synchronized (TRIM_STATS) {
+            trimMemoryLocked(level);
+        }
+    }
+
+    private static void trimMemoryLocked(int level) {
+        TRIM_STATS.trimCount++;
+
+        DrawableBudget budget = sDrawableBudget;
+        if (budget != null) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                trimDrawables(budget, 0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                trimDrawables(budget, budget.maxSize() / 2);
+            }
+        }
+
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            ResourceIndex current = sResourceIndex;
+            for (ResourceIndex index : RESOURCE_INDEX_MAP.values()) {
+                CachePartition caches = index.getCaches();
+                TRIM_STATS.colorsFreed += caches.colors.size() + caches.colorStateLists.size();
+                caches.colors.evictAll();
+                caches.colorStateLists.evictAll();
+
+                // Only the current theme keeps its hottest fonts.
+                int fonts = caches.typefaces.size();
+                caches.typefaces.trimToSize(index == current ? HOT_FONT_COUNT : 0);
+                TRIM_STATS.fontsFreed += fonts - caches.typefaces.size();
+            }
+        }
+
+        Log.d(TAG, String.format("Trimmed memory for level %s. %s", level, TRIM_STATS));
+    }
+
+    private static void trimDrawables(DrawableBudget budget, int maxSizeBytes) {
+        int drawables = budget.count();
+        int bytes = budget.size();
+        budget.trimToSize(maxSizeBytes);
+        TRIM_STATS.drawablesFreed += drawables - budget.count();
+        TRIM_STATS.drawableBytesFreed += bytes - budget.size();
+    }
+
+    /**
+     * Returns how much has been freed from the caches in response to memory pressure.
+     */
+    public static TrimStats getTrimStats() {
+        synchronized (TRIM_STATS) {
+            return new TrimStats(TRIM_STATS);
+        }
+    }
+
+    /**
+     * Returns how many requests were served by waiting on a load that another caller had already
+     * started, rather than loading the same resource again.
+     */
+    @AnyThread
+    public static long getCoalescedLoadCount() {
+        return COALESCED_LOAD_COUNT.get();
+    }
+
     /**
      * Gets id from theme apk
      */
-    @UiThread
+    @AnyThread
     @AnyRes
     public static int getId(Context context, String type, String name) {
-        return getResources(context).getIdentifier(name, type, getPackageName());
+        return getEntry(context, type, name).themeId;
+    }
+
+    private static ResourceIndex.Entry getEntry(Context context, String type, String name) {
+        return getEntry(context, getResourceIndex(context), type, name);
+    }
+
+    private static ResourceIndex.Entry getEntry(Context context, ResourceIndex index, String type, String name) {
+        ResourceIndex.Entry entry = index.get(type, name);
+        if (entry == null) {
+            // Two threads may both resolve a new resource, but the index keeps only the first entry.
+            String packageName = index.getThemePackageName();
+            int themeId = getResources(context, packageName).getIdentifier(name, type, packageName);
+            int hostId = context.getResources().getIdentifier(name, type, context.getPackageName());
+            entry = index.put(type, name, themeId, hostId);
+        }
+        return entry;
+    }
+
+    // The index is built once per theme package and kept while the theme is one of the most recent,
+    // or until that package is reinstalled, so switching back to it reuses its ids and cached values.
+    private static ResourceIndex getResourceIndex(Context context) {
+        String packageName = getPackageName();
+        ResourceIndex index = sResourceIndex;
+        if (index == null || !index.isFor(context.getPackageName(), packageName)) {
+            index = getResourceIndex(context, packageName);
+            sResourceIndex = index;
+            markRecent(index);
+        }
+        return index;
+    }
+
+    private static ResourceIndex getResourceIndex(Context context, String packageName) {
+        String key = getKey(context, packageName);
+        ResourceIndex index = RESOURCE_INDEX_MAP.get(key);
+        if (index == null) {
+            ResourceIndex newIndex = new ResourceIndex(context.getPackageName(), packageName,
+                    new CachePartition(getDrawableBudget(context)));
+            index = RESOURCE_INDEX_MAP.putIfAbsent(key, newIndex);
+            if (index == null) {
+                index = newIndex;
+                // Ids resolved into the index go stale if the theme is reinstalled, even if we never
+                // managed to load its Resources.
+                if (packageName != null) {
+                    registerReinstallReceiver(context, packageName);
+                }
+            } else {
+                // Another thread got there first.
+                newIndex.getCaches().release();
+            }
+        }
+        return index;
+    }
+
+    private static void markRecent(ResourceIndex index) {
+        synchronized (RECENT_INDEXES) {
+            if (RECENT_INDEXES.peekFirst() == index) {
+                return;
+            }
+            RECENT_INDEXES.remove(index);
+            RECENT_INDEXES.addFirst(index);
+            trimRecentThemesLocked();
+        }
+    }
+
+    // Keeps a theme that was loaded but never switched to, but only while there's room for it.
+    private static void markLeastRecent(ResourceIndex index) {
+        synchronized (RECENT_INDEXES) {
+            if (!RECENT_INDEXES.contains(index)) {
+                RECENT_INDEXES.addLast(index);
+                trimRecentThemesLocked();
+            }
+        }
     }
 
+    private static void trimRecentThemesLocked() {
+        while (RECENT_INDEXES.size() > sRecentThemeCount) {
+            ResourceIndex index = RECENT_INDEXES.removeLast();
+            // The next lookup against this theme starts over with a new index.
+            RESOURCE_INDEX_MAP.values().remove(index);
+            index.getCaches().release();
+            Log.d(TAG, String.format("Dropped cached resources for %s", index.getThemePackageName()));
+        }
+    }
+
+    /**
+     * Sets how many of the most recently used themes keep their resolved resources and decoded
+     * drawables in memory, so that switching back to one doesn't have to load it again. Drawables
+     * still share the budget set by {@link #setDrawableCacheSize}, and the least recently used
+     * theme gives its drawables up first. Defaults to 3.
+     */
+    @AnyThread
+    public static void setRecentThemeCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Count must be at least 1, but was " + count);
+        }
+        synchronized (RECENT_INDEXES) {
+            sRecentThemeCount = count;
+            trimRecentThemesLocked();
+        }
+    }
+
+    @AnyThread
+    public static int getRecentThemeCount() {
+        synchronized (RECENT_INDEXES) {
+            return sRecentThemeCount;
+        }
+    }
+
+
     /**
      * Gets string from theme apk
      */
-    @UiThread
+    @AnyThread
     public static String getString(Context context, @StringRes int resId) {
         return getString(context, Theme.get(context, resId));
     }
@@ -183,7 +505,7 @@ public class Theme {
     /**
      * Gets string from theme apk
      */
-    @UiThread
+    @AnyThread
     public static String getString(Context context, Res res) {
         return getString(context, res.getName());
     }
@@ -191,17 +513,17 @@ public class Theme {
     /**
      * Gets string from theme apk
      */
-    @UiThread
+    @AnyThread
     public static String getString(Context context, String name) {
-        int id = getId(context, STRING, name);
-        if (id == 0) return null;
-        return getResources(context).getString(id);
+        ResourceIndex.Entry entry = getEntry(context, STRING, name);
+        if (entry.themeId == 0) return null;
+        return getResources(context, entry.themePackageName).getString(entry.themeId);
     }
 
     /**
      * Gets boolean from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Boolean getBoolean(Context context, @BoolRes int resId) {
         return getBoolean(context, Theme.get(context, resId));
     }
@@ -209,7 +531,7 @@ public class Theme {
     /**
      * Gets boolean from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Boolean getBoolean(Context context, Res res) {
         return getBoolean(context, res.getName());
     }
@@ -217,22 +539,21 @@ public class Theme {
     /**
      * Gets boolean from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Boolean getBoolean(Context context, String name) {
-        int id = getId(context, BOOLEAN, name);
-        if (id == 0) {
-            id = context.getResources().getIdentifier(name, BOOLEAN, context.getPackageName());
-            if (id != 0) {
-                return context.getResources().getBoolean(id);
+        ResourceIndex.Entry entry = getEntry(context, BOOLEAN, name);
+        if (entry.themeId == 0) {
+            if (entry.hostId != 0) {
+                return context.getResources().getBoolean(entry.hostId);
             } else return null;
         }
-        return getResources(context).getBoolean(id);
+        return getResources(context, entry.themePackageName).getBoolean(entry.themeId);
     }
 
     /**
      * Gets dimen from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Float getDimen(Context context, @DimenRes int resId) {
         return getDimen(context, Theme.get(context, resId));
     }
@@ -240,7 +561,7 @@ public class Theme {
     /**
      * Gets dimen from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Float getDimen(Context context, Res res) {
         return getDimen(context, res.getName());
     }
@@ -248,22 +569,26 @@ public class Theme {
     /**
      * Gets dimen from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Float getDimen(Context context, String name) {
-        int id = getId(context, DIMEN, name);
+        return getDimen(context, getEntry(context, DIMEN, name));
+    }
+
+    private static Float getDimen(Context context, ResourceIndex.Entry key) {
+        int id = key.themeId;
         if (id == 0) {
-            id = context.getResources().getIdentifier(name, DIMEN, context.getPackageName());
+            id = key.hostId;
             if (id != 0) {
                 return context.getResources().getDimension(id);
             } else return null;
         }
-        return getResources(context).getDimension(id);
+        return getResources(context, key.themePackageName).getDimension(id);
     }
 
     /**
      * Gets drawable from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Drawable getDrawable(Context context, @DrawableRes int resId) {
         return getDrawable(context, Theme.get(context, resId));
     }
@@ -271,7 +596,7 @@ public class Theme {
     /**
      * Gets drawable from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Drawable getDrawable(Context context, Res res) {
         return getDrawable(context, res.getName());
     }
@@ -279,28 +604,115 @@ public class Theme {
     /**
      * Gets drawable from theme apk
      */
-    @UiThread
+    @AnyThread
     public static Drawable getDrawable(Context context, String name) {
-        String key = getKey(context) + "_" + name;
-        if (DRAWABLE_MAP.get(key) != null) {
-            return DRAWABLE_MAP.get(key).getConstantState().newDrawable();
+        return getDrawable(context, getEntry(context, DRAWABLE, name));
+    }
+
+    private static Drawable getDrawable(final Context context, final ResourceIndex.Entry key) {
+        if (key.themeId == 0 && key.hostId == 0) {
+            // Neither the theme nor the host has it, so there's nothing to load or to wait for.
+            return null;
         }
-        int id = getId(context, DRAWABLE, name);
+
+        final DrawableCache cache = key.caches.drawables;
+        Drawable.ConstantState cached = cache.getConstantState(key);
+        if (cached != null) {
+            return cached.newDrawable();
+        }
+
+        Drawable.ConstantState state = DRAWABLE_LOADS.load(key, new InFlightLoads.Loader<Drawable.ConstantState>() {
+            @Override
+            public Drawable.ConstantState load() {
+                // Another load may have finished between our cache miss and now.
+                Drawable.ConstantState cached = cache.getConstantState(key);
+                if (cached != null) {
+                    return cached;
+                }
+                Drawable drawable = decodeDrawable(context, key);
+                return drawable == null ? null : cache.putDrawable(key, drawable);
+            }
+        });
+
+        // Hand out a copy so that callers never share the instance backing the cache.
+        if (state != null) {
+            return state.newDrawable();
+        }
+        // Either there's no such drawable, or it can't be shared, in which case each caller decodes its own.
+        return decodeDrawable(context, key);
+    }
+
+    @Nullable
+    private static Drawable decodeDrawable(Context context, ResourceIndex.Entry key) {
+        int id = key.themeId;
         if (id == 0) {
-            id = context.getResources().getIdentifier(name, DRAWABLE, context.getPackageName());
+            id = key.hostId;
             if (id != 0) {
-                DRAWABLE_MAP.put(key, context.getResources().getDrawable(id));
-                return DRAWABLE_MAP.get(key);
+                return context.getResources().getDrawable(id);
             } else return null;
+        } else {
+            return getResources(context, key.themePackageName).getDrawable(id);
+        }
+    }
+
+    /**
+     * Sets how much memory decoded drawables may hold onto, as a fraction of the app's memory class.
+     * Defaults to 1/8th.
+     */
+    @AnyThread
+    public static synchronized void setDrawableCacheFraction(Context context, float fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be within (0, 1], but was " + fraction);
+        }
+        sDrawableCacheFraction = fraction;
+        sDrawableCacheSize = -1;
+        if (sDrawableBudget != null) {
+            sDrawableBudget.resize(getDrawableCacheSize(context));
+        }
+    }
+
+    /**
+     * Sets how many bytes decoded drawables may hold onto, across every theme that's kept in
+     * memory. Overrides {@link #setDrawableCacheFraction}.
+     */
+    @AnyThread
+    public static synchronized void setDrawableCacheSize(int maxSizeBytes) {
+        if (maxSizeBytes <= 0) {
+            throw new IllegalArgumentException("Size must be positive, but was " + maxSizeBytes);
+        }
+        sDrawableCacheSize = maxSizeBytes;
+        if (sDrawableBudget != null) {
+            sDrawableBudget.resize(maxSizeBytes);
+        }
+    }
+
+    private static DrawableBudget getDrawableBudget(Context context) {
+        DrawableBudget budget = sDrawableBudget;
+        if (budget == null) {
+            synchronized (Theme.class) {
+                budget = sDrawableBudget;
+                if (budget == null) {
+                    budget = new DrawableBudget(getDrawableCacheSize(context));
+                    sDrawableBudget = budget;
+                }
+            }
+        }
+        return budget;
+    }
+
+    private static int getDrawableCacheSize(Context context) {
+        if (sDrawableCacheSize > 0) {
+            return sDrawableCacheSize;
         }
-        DRAWABLE_MAP.put(key, getResources(context).getDrawable(id));
-        return DRAWABLE_MAP.get(key);
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) (memoryClassBytes * sDrawableCacheFraction)));
     }
 
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static int getColor(Context context, @ColorRes int resId) {
         return getColor(context, Theme.get(context, resId));
     }
@@ -308,7 +720,7 @@ public class Theme {
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static int getColor(Context context, Res res) {
         return getColor(context, res.getName());
     }
@@ -316,26 +728,43 @@ public class Theme {
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static int getColor(Context context, String name) {
-        String key = getKey(context) + "_" + name;
-        if (COLOR_MAP.get(key) != null) {
-            return COLOR_MAP.get(key);
-        }
-        int id = getId(context, COLOR, name);
-        if (id == 0) {
-            id = context.getResources().getIdentifier(name, COLOR, context.getPackageName());
-            COLOR_MAP.put(key, context.getResources().getColor(id));
-            return COLOR_MAP.get(key);
+        return getColor(context, getEntry(context, COLOR, name));
+    }
+
+    private static int getColor(final Context context, final ResourceIndex.Entry key) {
+        Integer cached = key.caches.colors.get(key);
+        if (cached != null) {
+            return cached;
         }
-        COLOR_MAP.put(key, getResources(context).getColor(id));
-        return COLOR_MAP.get(key);
+
+        return COLOR_LOADS.load(key, new InFlightLoads.Loader<Integer>() {
+            @Override
+            public Integer load() {
+                Integer cached = key.caches.colors.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+
+                int color;
+                int id = key.themeId;
+                if (id == 0) {
+                    id = key.hostId;
+                    color = context.getResources().getColor(id);
+                } else {
+                    color = getResources(context, key.themePackageName).getColor(id);
+                }
+                key.caches.colors.put(key, color);
+                return color;
+            }
+        });
     }
 
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static ColorStateList getColorStateList(Context context, @ColorRes int resId) {
         return getColorStateList(context, Theme.get(context, resId));
     }
@@ -343,7 +772,7 @@ public class Theme {
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static ColorStateList getColorStateList(Context context, Res res) {
         return getColorStateList(context, res.getName());
     }
@@ -351,31 +780,48 @@ public class Theme {
     /**
      * Gets color from theme apk
      */
-    @UiThread
+    @AnyThread
     public static ColorStateList getColorStateList(Context context, String name) {
-        String key = getKey(context) + "_" + name;
-        if (COLOR_STATE_LIST_MAP.get(key) != null) {
-            return COLOR_STATE_LIST_MAP.get(key);
-        }
-        int id = getId(context, COLOR, name);
-        if (id == 0) {
-            id = context.getResources().getIdentifier(name, COLOR, context.getPackageName());
-            COLOR_STATE_LIST_MAP.put(key, context.getResources().getColorStateList(id));
-            return COLOR_STATE_LIST_MAP.get(key);
+        return getColorStateList(context, getEntry(context, COLOR, name));
+    }
+
+    private static ColorStateList getColorStateList(final Context context, final ResourceIndex.Entry key) {
+        ColorStateList cached = key.caches.colorStateLists.get(key);
+        if (cached != null) {
+            return cached;
         }
-        COLOR_STATE_LIST_MAP.put(key, getResources(context).getColorStateList(id));
-        return COLOR_STATE_LIST_MAP.get(key);
+
+        return COLOR_STATE_LIST_LOADS.load(key, new InFlightLoads.Loader<ColorStateList>() {
+            @Override
+            public ColorStateList load() {
+                ColorStateList cached = key.caches.colorStateLists.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+
+                ColorStateList colorStateList;
+                int id = key.themeId;
+                if (id == 0) {
+                    id = key.hostId;
+                    colorStateList = context.getResources().getColorStateList(id);
+                } else {
+                    colorStateList = getResources(context, key.themePackageName).getColorStateList(id);
+                }
+                key.caches.colorStateLists.put(key, colorStateList);
+                return colorStateList;
+            }
+        });
     }
 
     /**
      * Gets android theme from theme apk. Can be 0 (no theme).
      */
-    @UiThread
+    @AnyThread
     public static int getTheme(Context context) {
-        int id = getId(context, "string", "app_theme");
-        if (id == 0) return 0;
+        ResourceIndex.Entry entry = getEntry(context, STRING, "app_theme");
+        if (entry.themeId == 0) return 0;
 
-        String fieldName = getResources(context).getString(id).replace(".", "_");
+        String fieldName = getResources(context, entry.themePackageName).getString(entry.themeId).replace(".", "_");
         try {
             Field field = android.R.style.class.getField(fieldName);
             return field.getInt(null);
@@ -392,12 +838,12 @@ public class Theme {
     /**
      * Gets android theme from theme apk. Can be 0 (no theme). This is for apps that want an actionbar in their Settings but not in their main app.
      */
-    @UiThread
+    @AnyThread
     public static int getSettingsTheme(Context context) {
-        int id = getId(context, "string", "app_settings_theme");
-        if (id == 0) return 0;
+        ResourceIndex.Entry entry = getEntry(context, STRING, "app_settings_theme");
+        if (entry.themeId == 0) return 0;
 
-        String fieldName = getResources(context).getString(id).replace(".", "_");
+        String fieldName = getResources(context, entry.themePackageName).getString(entry.themeId).replace(".", "_");
         try {
             Field field = android.R.style.class.getField(fieldName);
             return field.getInt(null);
@@ -414,68 +860,193 @@ public class Theme {
     /**
      * Returns whether the theme is light or dark. WARNING: Assumes dark if no resource is found.
      */
-    @UiThread
+    @AnyThread
     public static boolean isLightTheme(Context context) {
-        int id = getId(context, "string", "app_theme");
-        if (id != 0) {
-            String fieldName = getResources(context).getString(id).replace(".", "_");
+        ResourceIndex.Entry entry = getEntry(context, STRING, "app_theme");
+        if (entry.themeId != 0) {
+            String fieldName = getResources(context, entry.themePackageName).getString(entry.themeId).replace(".", "_");
             return fieldName.toLowerCase(Locale.US).contains("light");
         } else {
             return false;
         }
     }
 
-    @UiThread
+    @AnyThread
     public static String getPackageName() {
         return sPackageName;
     }
 
-    @UiThread
+    /**
+     * Switches to another theme. Themed* views that are alive pick up the new theme on the next
+     * frame, without their activity having to be recreated.
+     */
+    @AnyThread
     public static void setPackageName(String packageName) {
+        // Anything setPackageNameAsync is still resolving was asked for before this.
+        THEME_SWITCH_GENERATION.incrementAndGet();
+        if (applyPackageName(packageName)) {
+            ThemedViews.requestApplyTheme();
+        }
+    }
+
+    /**
+     * Makes packageName the current theme, for both setPackageName and setPackageNameAsync.
+     * Returns false if it already was.
+     */
+    @AnyThread
+    private static boolean applyPackageName(String packageName) {
+        if (TextUtils.equals(sPackageName, packageName)) {
+            return false;
+        }
         sPackageName = packageName;
+        return true;
     }
 
-    @UiThread
+    /**
+     * Switches to another theme without blocking the main thread. Everything the current theme has
+     * loaded so far is first resolved against the new theme in the background. Then, at the start
+     * of a frame, the theme is switched and every Themed* view is updated in the same pass, so no
+     * frame shows a mix of the two themes. If this is called again before the switch happens, only
+     * the latest call (to this or to {@link #setPackageName(String)}) takes effect.
+     */
+    @AnyThread
+    public static void setPackageNameAsync(Context context, String packageName, @Nullable OnThemeChangedListener listener) {
+        int generation = THEME_SWITCH_GENERATION.incrementAndGet();
+        switchThemeAsync(context.getApplicationContext(), packageName, generation, listener);
+    }
+
+    private static void switchThemeAsync(final Context context, final String packageName, final int generation,
+                                         @Nullable final OnThemeChangedListener listener) {
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final ThemeSnapshot snapshot = resolveSnapshot(context, packageName);
+                ThemedViews.postOnNextFrame(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != THEME_SWITCH_GENERATION.get()) {
+                            markLeastRecent(snapshot.index);
+                            return;
+                        }
+                        if (RESOURCE_INDEX_MAP.get(getKey(context, packageName)) != snapshot.index) {
+                            // The index was dropped (eg. the theme was reinstalled) while we were
+                            // resolving, and its caches went with it. Start over.
+                            switchThemeAsync(context, packageName, generation, listener);
+                            return;
+                        }
+
+                        snapshot.publish();
+                        if (applyPackageName(packageName)) {
+                            ThemedViews.invalidate();
+                            ThemedViews.applyTheme();
+                        }
+                        snapshot.trim();
+                        if (listener != null) {
+                            listener.onThemeChanged(packageName);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Resolves everything the current theme has loaded so far against another theme, leaving the
+     * results in that theme's caches.
+     */
+    private static ThemeSnapshot resolveSnapshot(Context context, String packageName) {
+        fetchFonts(context, packageName);
+        ResourceIndex index = getResourceIndex(context, packageName);
+        Map<ResourceIndex.Entry, Drawable> drawables = new HashMap<>();
+        Map<ResourceIndex.Entry, Integer> colors = new HashMap<>();
+        Map<ResourceIndex.Entry, ColorStateList> colorStateLists = new HashMap<>();
+        Map<ResourceIndex.Entry, Typeface> typefaces = new HashMap<>();
+
+        for (ResourceIndex.Entry current : getResourceIndex(context).getEntries()) {
+            ResourceIndex.Entry key = getEntry(context, index, current.type, current.name);
+            try {
+                switch (key.type) {
+                    case DRAWABLE:
+                        Drawable drawable = getDrawable(context, key);
+                        if (drawable != null) {
+                            drawables.put(key, drawable);
+                        }
+                        break;
+                    case COLOR:
+                        colors.put(key, getColor(context, key));
+                        colorStateLists.put(key, getColorStateList(context, key));
+                        break;
+                    case FONT:
+                        Typeface typeface = getFont(context, key);
+                        if (typeface != null) {
+                            typefaces.put(key, typeface);
+                        }
+                        break;
+                    case DIMEN:
+                        // Dimens aren't cached, but this loads the theme's Resources.
+                        getDimen(context, key);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to resolve " + key.name + " for " + packageName, e);
+            }
+        }
+        return new ThemeSnapshot(index, drawables, colors, colorStateLists, typefaces);
+    }
+
+    @AnyThread
     @Nullable
     public static Res get(Context context, @AnyRes int resId) {
         if (resId == 0) {
             return null;
         }
-        return new Res(context.getResources().getResourceTypeName(resId), context.getResources().getResourceEntryName(resId));
+        Res res = sResMap.get(resId);
+        if (res != null) {
+            return res;
+        }
+
+        res = new Res(context.getResources().getResourceTypeName(resId), context.getResources().getResourceEntryName(resId));
+        synchronized (RES_MAP_LOCK) {
+            Res existing = sResMap.get(resId);
+            if (existing != null) {
+                return existing;
+            }
+            SparseArray<Res> resMap = sResMap.clone();
+            resMap.put(resId, res);
+            sResMap = resMap;
+        }
+        return res;
     }
 
-    @UiThread
+    @AnyThread
     public static String getSoundPath(Context context, Res res) {
-        int id = getId(context, res.getType(), res.getName());
-        if (id == 0) {
-            id = context.getResources().getIdentifier(res.getName(), res.getType(), context.getPackageName());
-            return "android.resource://" + context.getPackageName() + "/" + id;
+        ResourceIndex.Entry entry = getEntry(context, res.getType(), res.getName());
+        if (entry.themeId == 0) {
+            return "android.resource://" + context.getPackageName() + "/" + entry.hostId;
         }
-        return "android.resource://" + getPackageName() + "/" + id;
+        return "android.resource://" + entry.themePackageName + "/" + entry.themeId;
     }
 
-    @UiThread
+    @AnyThread
     public static int getSound(Context context, SoundPool soundPool, Res res) {
-        int id = getId(context, res.getType(), res.getName());
-        if (id == 0) {
-            id = context.getResources().getIdentifier(res.getName(), res.getType(), context.getPackageName());
-            return soundPool.load(context, id, 1);
+        ResourceIndex.Entry entry = getEntry(context, res.getType(), res.getName());
+        if (entry.themeId == 0) {
+            return soundPool.load(context, entry.hostId, 1);
         }
-        return soundPool.load(getThemeContext(context), id, 1);
+        return soundPool.load(getThemeContext(context, entry.themePackageName), entry.themeId, 1);
     }
 
-    @UiThread
+    @AnyThread
     public static long getDurationOfSound(Context context, Theme.Res res) {
         int millis = 0;
         MediaPlayer mp = new MediaPlayer();
         try {
             AssetFileDescriptor afd;
-            int id = getId(context, res.getType(), res.getName());
-            if (id == 0) {
-                id = context.getResources().getIdentifier(res.getName(), res.getType(), context.getPackageName());
-                afd = context.getResources().openRawResourceFd(id);
+            ResourceIndex.Entry entry = getEntry(context, res.getType(), res.getName());
+            if (entry.themeId == 0) {
+                afd = context.getResources().openRawResourceFd(entry.hostId);
             } else {
-                afd = getThemeContext(context).getResources().openRawResourceFd(id);
+                afd = getThemeContext(context, entry.themePackageName).getResources().openRawResourceFd(entry.themeId);
             }
             mp.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
             afd.close();
@@ -489,97 +1060,538 @@ public class Theme {
         return millis;
     }
 
-    @UiThread
+    @AnyThread
     public static void setFont(Context context, Typeface typeface) {
-        TYPEFACE_MAP.put(getKey(context) + "_" + "font", typeface);
+        ResourceIndex.Entry key = getEntry(context, FONT, "font");
+        if (typeface == null) {
+            key.caches.typefaces.remove(key);
+        } else {
+            key.caches.typefaces.put(key, typeface);
+        }
     }
 
-    @UiThread
+    @AnyThread
     @Nullable
     public static Typeface getFont(Context context, @FontRes int resId) {
         return getFont(context, Theme.get(context, resId));
     }
 
-    @UiThread
+    @AnyThread
     @Nullable
     public static Typeface getFont(Context context, Res res) {
         return getFont(context, res.getName());
     }
 
-    @UiThread
+    @AnyThread
     @Nullable
     public static Typeface getFont(Context context) {
         return getFont(context, "font");
     }
 
-    @UiThread
+    @AnyThread
     @Nullable
     public static Typeface getFont(Context context, String name) {
-        String key = getKey(context) + "_" + name;
-        if (TYPEFACE_MAP.containsKey(key)) {
-            return TYPEFACE_MAP.get(key);
+        return getFont(context, getEntry(context, FONT, name));
+    }
+
+    @Nullable
+    private static Typeface getFont(final Context context, final ResourceIndex.Entry key) {
+        Typeface cached = key.caches.typefaces.get(key);
+        if (cached != null) {
+            return cached;
         }
 
+        return FONT_LOADS.load(key, new InFlightLoads.Loader<Typeface>() {
+            @Override
+            public Typeface load() {
+                Typeface cached = key.caches.typefaces.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+
+                Typeface t = loadFont(context, key, key.name);
+                if (t != null) {
+                    key.caches.typefaces.put(key, t);
+                }
+                return t;
+            }
+        });
+    }
+
+    @Nullable
+    private static Typeface loadFont(Context context, ResourceIndex.Entry key, String name) {
+        String packageName = key.themePackageName;
         if (Build.VERSION.SDK_INT >= 26) {
-            int id = getId(context, FONT, name);
+            int id = key.themeId;
             if (id != 0) {
-                TYPEFACE_MAP.put(key, getResources(context).getFont(id));
-                return TYPEFACE_MAP.get(key);
+                return getResources(context, packageName).getFont(id);
             }
         }
 
-        String[] extensions = {".ttf", ".otf"};
-        for (String s : extensions) {
-            try {
-                // Use cursor loader to grab font
-                Uri uri = Uri.parse("content://" + getPackageName() + ".FileProvider/" + name + s);
-                AssetFileDescriptor a = context.getContentResolver().openAssetFileDescriptor(uri, "r");
-                FileInputStream in = new FileInputStream(a.getFileDescriptor());
-                in.skip(a.getStartOffset());
-                File file = new File(context.getCacheDir(), name + s);
-                file.delete();
-                file.createNewFile();
-                FileOutputStream fOutput = new FileOutputStream(file);
-                byte[] dataBuffer = new byte[1024];
-                int readLength = 0;
-                while ((readLength = in.read(dataBuffer)) != -1) {
-                    fOutput.write(dataBuffer, 0, readLength);
-                }
-                in.close();
-                fOutput.close();
-
-                // Try/catch for broken fonts
-                Typeface t = Typeface.createFromFile(file);
-                TYPEFACE_MAP.put(key, t);
-                return TYPEFACE_MAP.get(key);
-            } catch (Exception e) {
-                // Do nothing
+        if (!key.hasFlag(ResourceIndex.Entry.FLAG_NOT_IN_THEME_ASSETS)) {
+            Typeface t = getFontFromThemeAssets(context, packageName, getAssetCache(context, packageName), getAssetManifest(context, packageName), name);
+            if (t != null) {
+                return t;
             }
+            key.addFlag(ResourceIndex.Entry.FLAG_NOT_IN_THEME_ASSETS);
         }
 
         if (Build.VERSION.SDK_INT >= 26) {
-            int id = context.getResources().getIdentifier(name, COLOR, context.getPackageName());
+            int id = key.hostId;
             if (id != 0) {
-                TYPEFACE_MAP.put(key, context.getResources().getFont(id));
-                return TYPEFACE_MAP.get(key);
+                return context.getResources().getFont(id);
             }
         }
 
-        AssetManager am = context.getResources().getAssets();
-        for (String s : extensions) {
-            try {
-                // Try/catch for broken fonts
-                Typeface t = Typeface.createFromAsset(am, name + s);
-                TYPEFACE_MAP.put(key, t);
-                return TYPEFACE_MAP.get(key);
-            } catch (Exception e) {
-                // Do nothing
+        if (!key.hasFlag(ResourceIndex.Entry.FLAG_NOT_IN_HOST_ASSETS)) {
+            Typeface t = getFontFromHostAssets(context, name);
+            if (t != null) {
+                return t;
             }
+            key.addFlag(ResourceIndex.Entry.FLAG_NOT_IN_HOST_ASSETS);
         }
 
-        // No typeface was found.
-        TYPEFACE_MAP.put(key, null);
-        return TYPEFACE_MAP.get(key);
+        // No typeface was found. The flags on the entry remember that, so we won't look again.
+        return null;
+    }
+
+    @Nullable
+    private static Typeface getFontFromThemeAssets(Context context, String packageName, @Nullable AssetCache cache, @Nullable AssetManifest manifest, String name) {
+        for (String s : FONT_EXTENSIONS) {
+            String fileName = name + s;
+            try {
+                // Don't bother asking for fonts the theme has told us it doesn't have
+                AssetManifest.Asset asset = manifest == null ? null : manifest.get(fileName);
+                if (manifest != null && asset == null) {
+                    continue;
+                }
+
+                // Fonts that were copied out of the theme on a previous launch are reused from disk
+                File file = cache == null ? null : asset == null ? cache.get(fileName) : cache.get(fileName, asset);
+                if (file != null) {
+                    // Try/catch for broken fonts
+                    return Typeface.createFromFile(file);
+                }
+
+                AssetFileDescriptor afd = openThemeAsset(context, packageName, fileName);
+                if (afd == null) {
+                    continue;
+                }
+                try {
+                    // Load straight from the descriptor when we can, so nothing gets copied
+                    Typeface t = createFromDescriptor(afd);
+                    if (t != null) {
+                        return t;
+                    }
+                    if (cache == null) {
+                        continue;
+                    }
+                    file = cache.put(fileName, afd, asset == null ? -1 : asset.size);
+                } finally {
+                    afd.close();
+                }
+
+                // Try/catch for broken fonts
+                return Typeface.createFromFile(file);
+            } catch (Exception e) {
+                // Do nothing
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the named theme assets (eg. "font.ttf") to disk in a single request to the theme's
+     * FileProvider, so that later lookups for them don't each need their own round trip. Assets
+     * that are already cached, or that the theme doesn't have, are skipped.
+     */
+    @AnyThread
+    public static void fetchAssets(Context context, String... fileNames) {
+        fetchAssets(context, Arrays.asList(fileNames));
+    }
+
+    /**
+     * Copies the named theme assets (eg. "font.ttf") to disk in a single request to the theme's
+     * FileProvider, so that later lookups for them don't each need their own round trip. Assets
+     * that are already cached, or that the theme doesn't have, are skipped.
+     */
+    @AnyThread
+    public static void fetchAssets(Context context, Collection<String> fileNames) {
+        String packageName = getPackageName();
+        if (packageName != null) {
+            fetchAssets(context, packageName, fileNames);
+        }
+    }
+
+    /**
+     * Fetches every font the theme's manifest lists, in one request. Called when a theme is about
+     * to be used, so font lookups find their files already on disk.
+     */
+    private static void fetchFonts(Context context, @Nullable String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        AssetManifest manifest = getAssetManifest(context, packageName);
+        if (manifest == null) {
+            return;
+        }
+
+        List<String> fonts = new ArrayList<>();
+        for (AssetManifest.Asset asset : manifest.getAssets()) {
+            for (String extension : FONT_EXTENSIONS) {
+                if (asset.path.endsWith(extension)) {
+                    fonts.add(asset.path);
+                    break;
+                }
+            }
+        }
+        fetchAssets(context, packageName, fonts);
+    }
+
+    private static void fetchAssets(Context context, String packageName, Collection<String> fileNames) {
+        AssetCache cache = getAssetCache(context, packageName);
+        AssetManifest manifest = getAssetManifest(context, packageName);
+        if (cache == null || manifest == null) {
+            // Themes that can't give us a manifest predate bundles, too.
+            return;
+        }
+
+        Set<String> requested = new HashSet<>();
+        Uri.Builder builder = Uri.parse("content://" + packageName + ".FileProvider/" + FileProvider.PATH_BUNDLE).buildUpon();
+        for (String fileName : fileNames) {
+            AssetManifest.Asset asset = manifest.get(fileName);
+            if (asset != null && cache.get(fileName, asset) == null && requested.add(fileName)) {
+                builder.appendQueryParameter(FileProvider.QUERY_PARAMETER_ASSET, fileName);
+            }
+        }
+        if (requested.isEmpty()) {
+            return;
+        }
+
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getContentResolver().openAssetFileDescriptor(builder.build(), "r");
+            if (afd == null) {
+                return;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(afd.createInputStream()));
+            try {
+                // Each asset comes back as its path, its length (or -1 if it's missing), then its bytes.
+                while (!requested.isEmpty()) {
+                    String path = in.readUTF();
+                    long length = in.readLong();
+                    if (!requested.remove(path)) {
+                        throw new IOException("Unexpected asset " + path);
+                    }
+                    if (length >= 0) {
+                        cache.put(path, in, length);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to fetch assets from " + packageName, e);
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // Already closed along with the stream
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a typeface directly from the file descriptor on API 26+. Returns null if the
+     * descriptor can't be memory mapped (eg. it's a pipe) and the font needs to be copied to disk first.
+     */
+    @Nullable
+    private static Typeface createFromDescriptor(AssetFileDescriptor afd) throws IOException {
+        if (afd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            return null;
+        }
+
+        if (Build.VERSION.SDK_INT >= 29) {
+            Font font = new Font.Builder(afd.getParcelFileDescriptor(), afd.getStartOffset(), afd.getLength()).build();
+            return new Typeface.CustomFallbackBuilder(new FontFamily.Builder(font).build())
+                    .setSystemFallback("sans-serif")
+                    .build();
+        }
+
+        // Typeface.Builder maps the whole file, so it only works when the descriptor is just the font.
+        if (Build.VERSION.SDK_INT >= 26 && afd.getStartOffset() == 0) {
+            return new Typeface.Builder(afd.getFileDescriptor()).build();
+        }
+
+        return null;
+    }
+
+    /**
+     * Opens an asset from the theme apk through the theme's FileProvider. Returns null if the
+     * theme doesn't have the asset.
+     */
+    @Nullable
+    private static AssetFileDescriptor openThemeAsset(Context context, String packageName, String fileName) {
+        try {
+            // Use cursor loader to grab the asset
+            Uri uri = Uri.parse("content://" + packageName + ".FileProvider/" + fileName);
+            return context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        } catch (Exception e) {
+            // The theme doesn't have this asset
+            return null;
+        }
+    }
+
+    /**
+     * Returns the manifest of the theme's assets, or null if the theme's FileProvider doesn't
+     * support manifests. It's fetched once per theme and saved alongside the theme's cached assets.
+     */
+    @Nullable
+    private static AssetManifest getAssetManifest(Context context, String packageName) {
+        // Held while loading, so that the manifest is only fetched once.
+        synchronized (ASSET_MANIFEST_MAP) {
+            if (ASSET_MANIFEST_MAP.containsKey(packageName)) {
+                return ASSET_MANIFEST_MAP.get(packageName);
+            }
+
+            AssetManifest manifest;
+            try {
+                manifest = loadAssetManifest(context, packageName, getAssetCache(context, packageName));
+            } catch (IOException e) {
+                // The theme is still building its manifest, so we'll ask again next time.
+                return null;
+            }
+            ASSET_MANIFEST_MAP.put(packageName, manifest);
+            return manifest;
+        }
+    }
+
+    /**
+     * Reads the manifest saved alongside the theme's cached assets, or asks the theme for it and
+     * saves it there. Safe to call off the main thread. Throws if the theme hasn't finished
+     * building its manifest yet.
+     */
+    @Nullable
+    private static AssetManifest loadAssetManifest(Context context, String packageName, @Nullable AssetCache cache) throws IOException {
+        AssetManifest manifest = cache == null ? null : cache.getManifest();
+        if (manifest == null) {
+            manifest = queryAssetManifest(context, packageName);
+            if (manifest != null && cache != null) {
+                try {
+                    cache.putManifest(manifest);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save the asset manifest for " + packageName, e);
+                }
+                // Whatever the previous version of the theme had cached is no longer needed.
+                final AssetCache staleCache = cache;
+                getBackgroundExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        staleCache.deleteStaleVersions();
+                    }
+                });
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Asks the theme for its manifest. Returns null if the theme can't serve one, or throws if it
+     * hasn't finished building it yet.
+     */
+    @Nullable
+    private static AssetManifest queryAssetManifest(Context context, String packageName) throws IOException {
+        Uri uri = Uri.parse("content://" + packageName + ".FileProvider/" + FileProvider.PATH_MANIFEST);
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(uri, null, null, null, null);
+        } catch (Exception e) {
+            // The theme doesn't have a FileProvider
+            return null;
+        }
+        if (cursor == null) {
+            throw new IOException(packageName + " hasn't built its asset manifest yet");
+        }
+        try {
+            // A theme that's too old to serve a manifest answers with a cursor that isn't one.
+            return AssetManifest.read(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Nullable
+    private static AssetCache getAssetCache(Context context, String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+        AssetCache cache = ASSET_CACHE_MAP.get(packageName);
+        if (cache != null) {
+            return cache;
+        }
+
+        synchronized (ASSET_CACHE_MAP) {
+            cache = ASSET_CACHE_MAP.get(packageName);
+            if (cache != null) {
+                return cache;
+            }
+
+            // The catalog remembers the theme's version, so after the first launch opening the cache
+            // doesn't need to ask the PackageManager.
+            ThemeCatalog catalog = getThemeCatalog(context, getThemeAction(context));
+            ThemeCatalog.Entry entry = catalog.getEntry(packageName);
+            if (entry != null) {
+                cache = AssetCache.create(context, packageName, entry.versionCode, entry.lastUpdateTime);
+            } else {
+                try {
+                    PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+                    cache = AssetCache.create(context, packageName, PackageInfoCompat.getLongVersionCode(info), info.lastUpdateTime);
+                } catch (NameNotFoundException e) {
+                    Log.e(TAG, "Failed to find " + packageName, e);
+                    return null;
+                }
+            }
+            registerReinstallReceiver(context, packageName);
+            ASSET_CACHE_MAP.put(packageName, cache);
+            checkAssetCache(context.getApplicationContext(), catalog, packageName, cache);
+            return cache;
+        }
+    }
+
+    /**
+     * Makes sure the cache was opened for the theme's current version, in case the theme was updated
+     * while we weren't running, and then cleans up after its older versions. Both are done on a
+     * background thread.
+     */
+    private static void checkAssetCache(final Context context, final ThemeCatalog catalog, final String packageName, final AssetCache cache) {
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (catalog.update(context.getPackageManager(), packageName, null)) {
+                        catalog.write();
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to update the theme catalog for " + packageName, e);
+                }
+
+                ThemeCatalog.Entry entry = catalog.getEntry(packageName);
+                if (entry != null && !cache.isVersion(entry.versionCode, entry.lastUpdateTime)) {
+                    // The catalog was out of date. Start over with the theme's current version.
+                    clearCacheForPackage(context, packageName);
+                    return;
+                }
+                cache.deleteStaleVersions();
+            }
+        });
+    }
+
+    @Nullable
+    private static Typeface getFontFromHostAssets(Context context, String name) {
+        AssetManager am = context.getResources().getAssets();
+        for (String s : FONT_EXTENSIONS) {
+            try {
+                // Try/catch for broken fonts
+                return Typeface.createFromAsset(am, name + s);
+            } catch (Exception e) {
+                // Do nothing
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the given resources on a background thread, so that later calls to {@link #getDrawable},
+     * {@link #getColor}, {@link #getColorStateList} and {@link #getFont} for them are served from
+     * memory. Drawables are decoded, colors and fonts are loaded, and the ids of everything else
+     * (such as sounds) are looked up. Call it early, eg. from Application.onCreate.
+     */
+    @AnyThread
+    public static void preload(Context context, Collection<Res> resources) {
+        preload(context, resources, null);
+    }
+
+    /**
+     * Resolves the given resources on a background thread, so that later calls to {@link #getDrawable},
+     * {@link #getColor}, {@link #getColorStateList} and {@link #getFont} for them are served from
+     * memory. Drawables are decoded, colors and fonts are loaded, and the ids of everything else
+     * (such as sounds) are looked up. Call it early, eg. from Application.onCreate.
+     *
+     * @param listener Notified on the main thread once the resources are cached.
+     */
+    @AnyThread
+    public static void preload(final Context context, Collection<Res> resources, @Nullable final OnPreloadListener listener) {
+        final List<Res> pending = new ArrayList<>(resources);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Res res : pending) {
+                    if (FONT.equals(res.getType())) {
+                        fetchFonts(context, getPackageName());
+                        break;
+                    }
+                }
+
+                for (Res res : pending) {
+                    try {
+                        preload(context, res);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Failed to preload " + res, e);
+                    }
+                }
+
+                if (listener != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onPreloaded();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads a resource through its getter, which leaves it in our caches.
+     */
+    private static void preload(Context context, Res res) {
+        switch (res.getType()) {
+            case DRAWABLE:
+                getDrawable(context, res.getName());
+                break;
+            case COLOR:
+                getColor(context, res.getName());
+                getColorStateList(context, res.getName());
+                break;
+            case FONT:
+                getFont(context, res.getName());
+                break;
+            default:
+                getId(context, res.getType(), res.getName());
+                break;
+        }
+    }
+
+    // Shared by the work Theme does off the main thread. The threads go away when idle.
+    private static synchronized Executor getBackgroundExecutor() {
+        if (sBackgroundExecutor == null) {
+            int threadCount = Math.max(2, Math.min(MAX_BACKGROUND_THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Theme");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sBackgroundExecutor = executor;
+        }
+        return sBackgroundExecutor;
     }
 
     /**
@@ -589,17 +1601,11 @@ public class Theme {
     public static List<App> getApps(Context context) {
         List<App> apps = new LinkedList<>();
         PackageManager manager = context.getPackageManager();
-
-        Intent mainIntent;
-        if (sPackageOverride != null) {
-            mainIntent = new Intent(sPackageOverride + ".THEME", null);
-        } else {
-            mainIntent = new Intent(context.getPackageName() + ".THEME", null);
-        }
+        String action = getThemeAction(context);
 
         final List<ResolveInfo> infos;
         try {
-            infos = manager.queryIntentActivities(mainIntent, 0);
+            infos = manager.queryIntentActivities(new Intent(action, null), 0);
         } catch (Exception e) {
             e.printStackTrace();
             return apps;
@@ -608,24 +1614,337 @@ public class Theme {
         for (ResolveInfo info : infos) {
             apps.add(new App(info.loadLabel(manager).toString(), info.activityInfo.applicationInfo.packageName));
         }
+        refreshCatalog(context.getApplicationContext(), action, infos);
         return apps;
     }
 
-    private static String getKey(Context context) {
-        return getKey(context, getPackageName());
+    /**
+     * Brings the catalog in line with a query someone else already made, so that
+     * {@link #getCachedApps(Context)} reflects it. The sequence number is left alone, since the
+     * query may have missed changes made since then.
+     */
+    private static void refreshCatalog(final Context context, final String action, final List<ResolveInfo> infos) {
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                ThemeCatalog catalog = getThemeCatalog(context, action);
+                PackageManager manager = context.getPackageManager();
+                Set<String> packageNames = new HashSet<>();
+                for (ResolveInfo info : infos) {
+                    String packageName = info.activityInfo.applicationInfo.packageName;
+                    packageNames.add(packageName);
+                    try {
+                        catalog.update(manager, packageName, info);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Failed to update " + packageName, e);
+                    }
+                }
+                catalog.retainAll(packageNames);
+                try {
+                    catalog.write();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save the theme catalog", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the themes found the last time we looked, or null if we haven't looked yet. The list
+     * is saved to disk, so this is a file read on the first call of the process and free afterwards.
+     * It's suitable for filling in UI immediately while
+     * {@link #getAppsAsync(Context, OnAppsLoadedListener)} looks again.
+     */
+    @AnyThread
+    @Nullable
+    public static List<App> getCachedApps(Context context) {
+        ThemeCatalog catalog = getThemeCatalog(context, getThemeAction(context));
+        return catalog.isEmpty() ? null : catalog.getApps();
+    }
+
+    /**
+     * Returns the theme with the given package, if it's one we've seen before. The entry is checked
+     * against the package's current PackageInfo, so its name is reloaded if the theme was updated.
+     */
+    @Nullable
+    static App getCachedApp(Context context, String packageName) {
+        ThemeCatalog catalog = getThemeCatalog(context, getThemeAction(context));
+        if (catalog.getApp(packageName) == null) {
+            return null;
+        }
+        try {
+            catalog.update(context.getPackageManager(), packageName, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to update " + packageName, e);
+        }
+        return catalog.getApp(packageName);
+    }
+
+    /**
+     * Looks up the installed themes on a background thread and hands them to the listener on the
+     * main thread. Themes are remembered on disk along with their lastUpdateTime and versionCode, so
+     * labels are only loaded (in parallel) for themes that are new or were updated. On API 26+, only
+     * the packages that changed since the last look are checked at all. The listener is always
+     * called, with the themes we already knew about if the lookup fails.
+     */
+    @AnyThread
+    public static void getAppsAsync(Context context, final OnAppsLoadedListener listener) {
+        final Context appContext = context.getApplicationContext();
+        final String action = getThemeAction(context);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                ThemeCatalog catalog = null;
+                try {
+                    catalog = getThemeCatalog(appContext, action);
+                    int sequenceNumber = catalog.getCurrentSequenceNumber(appContext);
+
+                    // A null ResolveInfo means the package still has to be checked to see if it's a theme.
+                    Map<String, ResolveInfo> packages = new LinkedHashMap<>();
+                    List<String> changedPackages = catalog.getChangedPackages(appContext);
+                    if (changedPackages != null) {
+                        for (String packageName : changedPackages) {
+                            packages.put(packageName, null);
+                        }
+                    } else {
+                        List<ResolveInfo> infos = appContext.getPackageManager().queryIntentActivities(new Intent(action, null), 0);
+                        for (ResolveInfo info : infos) {
+                            packages.put(info.activityInfo.applicationInfo.packageName, info);
+                        }
+                        catalog.retainAll(packages.keySet());
+                    }
+                    updateCatalog(appContext, catalog, packages, sequenceNumber, handler, listener);
+                } catch (Exception e) {
+                    // The listener still hears back, with whatever we knew before.
+                    Log.e(TAG, "Failed to query for themes", e);
+                    deliverApps(handler, listener, catalog == null ? Collections.<App>emptyList() : catalog.getApps());
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings each package's entry in the catalog up to date, side by side, since loading a label
+     * means loading the theme's resources. Whichever update finishes last saves and publishes the
+     * catalog.
+     */
+    private static void updateCatalog(final Context context, final ThemeCatalog catalog, Map<String, ResolveInfo> packages,
+                                      final int sequenceNumber, final Handler handler, final OnAppsLoadedListener listener) {
+        if (packages.isEmpty()) {
+            publishCatalog(context, catalog, sequenceNumber, handler, listener);
+            return;
+        }
+
+        final PackageManager manager = context.getPackageManager();
+        final AtomicInteger remaining = new AtomicInteger(packages.size());
+        for (final Map.Entry<String, ResolveInfo> entry : packages.entrySet()) {
+            getBackgroundExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        catalog.update(manager, entry.getKey(), entry.getValue());
+                    } catch (Exception e) {
+                        Log.w(TAG, "Failed to update " + entry.getKey(), e);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        publishCatalog(context, catalog, sequenceNumber, handler, listener);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void publishCatalog(Context context, ThemeCatalog catalog, int sequenceNumber, Handler handler, OnAppsLoadedListener listener) {
+        try {
+            saveCatalog(context, catalog, sequenceNumber);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to save the theme catalog", e);
+        }
+        deliverApps(handler, listener, catalog.getApps());
+    }
+
+    private static void deliverApps(Handler handler, final OnAppsLoadedListener listener, final List<App> apps) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onAppsLoaded(apps);
+            }
+        });
+    }
+
+    private static void saveCatalog(Context context, ThemeCatalog catalog, int sequenceNumber) {
+        catalog.setUpToDate(context, sequenceNumber);
+        try {
+            catalog.write();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the theme catalog", e);
+        }
+    }
+
+    private static ThemeCatalog getThemeCatalog(Context context, String action) {
+        ThemeCatalog catalog = CATALOG_MAP.get(action);
+        if (catalog != null) {
+            return catalog;
+        }
+
+        synchronized (CATALOG_MAP) {
+            catalog = CATALOG_MAP.get(action);
+            if (catalog == null) {
+                catalog = ThemeCatalog.read(context, action);
+                CATALOG_MAP.put(action, catalog);
+                registerCatalogReceiver(context);
+            }
+        }
+        // So that we hear about locale changes.
+        registerComponentCallbacks(context);
+        return catalog;
+    }
+
+    // While we're running, package broadcasts keep the catalogs current without another query.
+    private static void registerCatalogReceiver(Context context) {
+        if (sCatalogReceiverRegistered) {
+            return;
+        }
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, Intent intent) {
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    // Ignored. The package is being updated, and we'll hear about it again when it's back.
+                    return;
+                }
+
+                final String packageName = intent.getData().getEncodedSchemeSpecificPart();
+                getBackgroundExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ThemeCatalog catalog : CATALOG_MAP.values()) {
+                            try {
+                                if (catalog.update(context.getPackageManager(), packageName, null)) {
+                                    catalog.write();
+                                }
+                            } catch (Exception e) {
+                                Log.w(TAG, "Failed to update the theme catalog for " + packageName, e);
+                            }
+                        }
+                    }
+                });
+            }
+        }, intentFilter);
+        sCatalogReceiverRegistered = true;
+    }
+
+    private static String getThemeAction(Context context) {
+        String packageOverride = sPackageOverride;
+        return (packageOverride != null ? packageOverride : context.getPackageName()) + ".THEME";
+    }
+
+    /**
+     * Returns true if themePackageName is registered as a theme for hostPackageName. Unlike
+     * {@link #getApps(Context)}, this only resolves the one package and doesn't load any labels.
+     */
+    static boolean isTheme(Context context, String hostPackageName, String themePackageName) {
+        Intent intent = new Intent(hostPackageName + ".THEME", null);
+        intent.setPackage(themePackageName);
+        try {
+            return !context.getPackageManager().queryIntentActivities(intent, 0).isEmpty();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to query for themes", e);
+            return false;
+        }
     }
 
     private static String getKey(Context context, String packageName) {
         return context.getPackageName() + "_" + packageName;
     }
 
+    /**
+     * Notified once {@link #preload(Context, Collection, OnPreloadListener)} has finished.
+     */
+    public interface OnPreloadListener {
+        @UiThread
+        void onPreloaded();
+    }
+
+    /**
+     * Notified once {@link #setPackageNameAsync(Context, String, OnThemeChangedListener)} has
+     * switched themes.
+     */
+    public interface OnThemeChangedListener {
+        @UiThread
+        void onThemeChanged(String packageName);
+    }
+
+    /**
+     * Notified with the installed themes by {@link #getAppsAsync(Context, OnAppsLoadedListener)}.
+     */
+    public interface OnAppsLoadedListener {
+        @UiThread
+        void onAppsLoaded(List<App> apps);
+    }
+
+    /**
+     * Counters for what the caches have given back in response to memory pressure.
+     */
+    public static class TrimStats {
+        private int trimCount;
+        private long drawablesFreed;
+        private long drawableBytesFreed;
+        private long colorsFreed;
+        private long fontsFreed;
+
+        private TrimStats() {}
+
+        private TrimStats(TrimStats other) {
+            this.trimCount = other.trimCount;
+            this.drawablesFreed = other.drawablesFreed;
+            this.drawableBytesFreed = other.drawableBytesFreed;
+            this.colorsFreed = other.colorsFreed;
+            this.fontsFreed = other.fontsFreed;
+        }
+
+        public int getTrimCount() {
+            return trimCount;
+        }
+
+        public long getDrawablesFreed() {
+            return drawablesFreed;
+        }
+
+        public long getDrawableBytesFreed() {
+            return drawableBytesFreed;
+        }
+
+        public long getColorsFreed() {
+            return colorsFreed;
+        }
+
+        public long getFontsFreed() {
+            return fontsFreed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("TrimStats{trimCount=%s, drawablesFreed=%s, drawableBytesFreed=%s, colorsFreed=%s, fontsFreed=%s}",
+                    trimCount, drawablesFreed, drawableBytesFreed, colorsFreed, fontsFreed);
+        }
+    }
+
     public static class Res {
         private final String type;
         private final String name;
+        private final int hash;
 
         private Res(String type, String name) {
             this.type = type;
             this.name = name;
+            this.hash = 31 * type.hashCode() + name.hashCode();
         }
 
         public String getType() {
@@ -636,6 +1955,19 @@ public class Theme {
             return name;
         }
 
+        /**
+         * Res are interned by {@link Theme#get(Context, int)}, so identity is equality.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
         @Override
         public String toString() {
             return String.format("Res{name=%s, type=%s}", name, type);
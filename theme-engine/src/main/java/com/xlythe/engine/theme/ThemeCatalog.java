@@ -0,0 +1,299 @@
+package com.xlythe.engine.theme;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.core.os.ConfigurationCompat;
+
+import static com.xlythe.engine.theme.Theme.TAG;
+
+/**
+ * The themes installed for a host, saved to disk along with the lastUpdateTime and versionCode of
+ * each theme. An entry stays valid for as long as its package's PackageInfo matches, so labels are
+ * only ever loaded for themes that are new or were updated.
+ *
+ * On API 26+, the catalog also remembers the PackageManager's change sequence number, so the next
+ * process only has to look at the packages that changed since, rather than query for every theme.
+ *
+ * Labels are localized, so the catalog is only good for the locales it was saved under.
+ */
+class ThemeCatalog {
+    private static final String DIRECTORY_NAME = "theme_catalog";
+
+    private final File file;
+    private final String action;
+    private final String locales;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private int bootCount = -1;
+    private int sequenceNumber = -1;
+    private boolean saved;
+
+    private ThemeCatalog(File file, String action, String locales) {
+        this.file = file;
+        this.action = action;
+        this.locales = locales;
+    }
+
+    /**
+     * Reads the catalog of themes that respond to the given action. The catalog is empty if it has
+     * never been saved, or if it was saved under different locales.
+     */
+    static ThemeCatalog read(Context context, String action) {
+        ThemeCatalog catalog = new ThemeCatalog(new File(new File(context.getCacheDir(), DIRECTORY_NAME), action), action,
+                getLocales(context.getResources().getConfiguration()));
+        if (!catalog.file.isFile()) {
+            return catalog;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(catalog.file));
+            try {
+                String[] header = reader.readLine().split("\t");
+                if (header.length < 3 || !catalog.locales.equals(header[2])) {
+                    // Every label is in the wrong language. Start over, including the sequence
+                    // number, so that the next look finds every theme again.
+                    return catalog;
+                }
+                catalog.bootCount = Integer.parseInt(header[0]);
+                catalog.sequenceNumber = Integer.parseInt(header[1]);
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // The name goes last, since it's the only column that may contain a tab.
+                    String[] columns = line.split("\t", 4);
+                    Entry entry = new Entry(new App(columns[3], columns[0]), Long.parseLong(columns[1]), Long.parseLong(columns[2]));
+                    catalog.entries.put(entry.app.getPackageName(), entry);
+                }
+                catalog.saved = true;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read " + catalog.file, e);
+            catalog.entries.clear();
+            catalog.bootCount = -1;
+            catalog.sequenceNumber = -1;
+            catalog.saved = false;
+        }
+        return catalog;
+    }
+
+    /**
+     * Returns the configuration's locales, in the form they're saved in the catalog's header.
+     */
+    static String getLocales(Configuration configuration) {
+        return ConfigurationCompat.getLocales(configuration).toLanguageTags();
+    }
+
+    /**
+     * Returns true if the catalog's labels were loaded under the given configuration's locales.
+     */
+    boolean isLocalizedFor(Configuration configuration) {
+        return locales.equals(getLocales(configuration));
+    }
+
+    /**
+     * Saves the catalog. The file is written under a temporary name and moved into place.
+     */
+    synchronized void write() throws IOException {
+        StringBuilder contents = new StringBuilder();
+        contents.append(bootCount).append('\t').append(sequenceNumber).append('\t').append(locales).append('\n');
+        for (Entry entry : entries.values()) {
+            contents.append(entry.app.getPackageName()).append('\t').append(entry.lastUpdateTime).append('\t').append(entry.versionCode).append('\t')
+                    .append(entry.app.getName().replace('\n', ' ')).append('\n');
+        }
+        AssetCache.write(file, contents.toString().getBytes("UTF-8"));
+        saved = true;
+    }
+
+    /**
+     * Returns the themes sorted by name. Entries are added as their labels finish loading, which
+     * happens in no particular order.
+     */
+    synchronized List<App> getApps() {
+        List<App> apps = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            apps.add(entry.app);
+        }
+        Collections.sort(apps, new Comparator<App>() {
+            @Override
+            public int compare(App a, App b) {
+                return String.CASE_INSENSITIVE_ORDER.compare(a.getName(), b.getName());
+            }
+        });
+        return Collections.unmodifiableList(apps);
+    }
+
+    @Nullable
+    synchronized App getApp(String packageName) {
+        Entry entry = entries.get(packageName);
+        return entry == null ? null : entry.app;
+    }
+
+    /**
+     * Returns what we knew about the package the last time we looked, or null if it isn't a theme
+     * we've seen.
+     */
+    @Nullable
+    synchronized Entry getEntry(String packageName) {
+        return entries.get(packageName);
+    }
+
+    /**
+     * Returns true if we've never saved this catalog, or if what was saved is no longer usable.
+     */
+    synchronized boolean isEmpty() {
+        return !saved;
+    }
+
+    /**
+     * Brings the entry for a package up to date, loading its label if it's a theme that's new or
+     * was updated. Returns true if the catalog changed.
+     *
+     * @param info The package's theme activity, if the caller has already resolved it.
+     */
+    boolean update(PackageManager manager, String packageName, @Nullable ResolveInfo info) {
+        PackageInfo packageInfo;
+        try {
+            packageInfo = manager.getPackageInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            return remove(packageName);
+        }
+
+        long versionCode = PackageInfoCompat.getLongVersionCode(packageInfo);
+        synchronized (this) {
+            Entry entry = entries.get(packageName);
+            if (entry != null && entry.lastUpdateTime == packageInfo.lastUpdateTime && entry.versionCode == versionCode) {
+                return false;
+            }
+        }
+
+        if (info == null) {
+            Intent intent = new Intent(action, null);
+            intent.setPackage(packageName);
+            List<ResolveInfo> infos = manager.queryIntentActivities(intent, 0);
+            if (infos.isEmpty()) {
+                return remove(packageName);
+            }
+            info = infos.get(0);
+        }
+
+        Entry entry = new Entry(new App(info.loadLabel(manager).toString(), packageName), packageInfo.lastUpdateTime, versionCode);
+        synchronized (this) {
+            entries.put(packageName, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every entry that isn't in the given packages.
+     */
+    synchronized void retainAll(Collection<String> packageNames) {
+        entries.keySet().retainAll(packageNames);
+    }
+
+    private synchronized boolean remove(String packageName) {
+        return entries.remove(packageName) != null;
+    }
+
+    /**
+     * Returns the packages that were installed, updated or removed since the catalog was last
+     * brought up to date, or null if we can't tell and every theme has to be looked up again.
+     */
+    @Nullable
+    List<String> getChangedPackages(Context context) {
+        if (Build.VERSION.SDK_INT < 26) {
+            return null;
+        }
+        int sequenceNumber = getBaseline(context);
+        if (sequenceNumber < 0) {
+            return null;
+        }
+
+        ChangedPackages changedPackages = context.getPackageManager().getChangedPackages(sequenceNumber);
+        return changedPackages == null ? Collections.<String>emptyList() : changedPackages.getPackageNames();
+    }
+
+    /**
+     * Returns a token for the PackageManager's current state, to hand to {@link #setUpToDate} once
+     * every change up to this point has been applied. Read it before looking at any packages, so
+     * that nothing that changes in the meantime is missed.
+     */
+    int getCurrentSequenceNumber(Context context) {
+        if (Build.VERSION.SDK_INT < 26) {
+            return -1;
+        }
+        int sequenceNumber = Math.max(0, getBaseline(context));
+        ChangedPackages changedPackages = context.getPackageManager().getChangedPackages(sequenceNumber);
+        return changedPackages == null ? sequenceNumber : changedPackages.getSequenceNumber();
+    }
+
+    /**
+     * Returns the sequence number the catalog was last brought up to date at, or -1 if there isn't
+     * one that's valid on this boot.
+     */
+    private int getBaseline(Context context) {
+        if (Build.VERSION.SDK_INT < 26) {
+            return -1;
+        }
+
+        int bootCount;
+        int sequenceNumber;
+        synchronized (this) {
+            bootCount = this.bootCount;
+            sequenceNumber = this.sequenceNumber;
+        }
+        // Sequence numbers start over after a reboot.
+        if (sequenceNumber < 0 || bootCount != getBootCount(context)) {
+            return -1;
+        }
+        return sequenceNumber;
+    }
+
+    synchronized void setUpToDate(Context context, int sequenceNumber) {
+        this.bootCount = getBootCount(context);
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    private static int getBootCount(Context context) {
+        if (Build.VERSION.SDK_INT < 24) {
+            return -1;
+        }
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+    }
+
+    static final class Entry {
+        final App app;
+        final long lastUpdateTime;
+        final long versionCode;
+
+        private Entry(App app, long lastUpdateTime, long versionCode) {
+            this.app = app;
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+        }
+    }
+}
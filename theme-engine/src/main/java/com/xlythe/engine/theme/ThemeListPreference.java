@@ -7,9 +7,12 @@ import android.util.AttributeSet;
 import androidx.preference.ListPreference;
 import androidx.preference.PreferenceManager;
 
+import java.util.Collections;
 import java.util.List;
 
 public class ThemeListPreference extends ListPreference {
+    private List<App> themes = Collections.emptyList();
+
     public ThemeListPreference(Context context) {
         super(context);
         setup();
@@ -33,8 +36,47 @@ public class ThemeListPreference extends ListPreference {
     }
 
     private void setup() {
-        // Grab all installed themes
-        final List<App> themes = Theme.getApps(getContext());
+        // Show the themes we found last time right away, then look again in the background and
+        // patch in anything that was installed or removed since.
+        List<App> cachedThemes = Theme.getCachedApps(getContext());
+        if (cachedThemes != null) {
+            themes = cachedThemes;
+        }
+        setThemes(themes);
+
+        Theme.getAppsAsync(getContext(), new Theme.OnAppsLoadedListener() {
+            @Override
+            public void onAppsLoaded(List<App> apps) {
+                if (!apps.equals(themes)) {
+                    themes = apps;
+                    setThemes(apps);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean callChangeListener(Object newValue) {
+        if (!super.callChangeListener(newValue)) {
+            return false;
+        }
+
+        if (getOnPreferenceChangeListener() != null) {
+            // The host is listening, so it switches themes itself.
+            return true;
+        }
+
+        // Load the new theme in the background, then switch every Themed* view over to it at once.
+        Theme.setPackageNameAsync(getContext(), (String) newValue, new Theme.OnThemeChangedListener() {
+            @Override
+            public void onThemeChanged(String packageName) {
+                setSummary(getThemeTitle(themes, packageName));
+            }
+        });
+        return true;
+    }
+
+    private void setThemes(List<App> themes) {
         CharSequence[] themeEntry = new CharSequence[themes.size() + 1];
         CharSequence[] themeValue = new CharSequence[themes.size() + 1];
 
@@ -0,0 +1,68 @@
+package com.xlythe.engine.theme;
+
+import android.content.res.ColorStateList;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.UiThread;
+
+/**
+ * A theme's working set, resolved ahead of time so that switching to the theme doesn't decode
+ * anything on the main thread. The values are kept alive by the snapshot itself, so the caches
+ * can't drop them between the snapshot being built and the switch. Once built, it never changes.
+ */
+final class ThemeSnapshot {
+    final ResourceIndex index;
+    private final Map<ResourceIndex.Entry, Drawable> drawables;
+    private final Map<ResourceIndex.Entry, Integer> colors;
+    private final Map<ResourceIndex.Entry, ColorStateList> colorStateLists;
+    private final Map<ResourceIndex.Entry, Typeface> typefaces;
+
+    ThemeSnapshot(ResourceIndex index,
+                  Map<ResourceIndex.Entry, Drawable> drawables,
+                  Map<ResourceIndex.Entry, Integer> colors,
+                  Map<ResourceIndex.Entry, ColorStateList> colorStateLists,
+                  Map<ResourceIndex.Entry, Typeface> typefaces) {
+        this.index = index;
+        this.drawables = Collections.unmodifiableMap(new HashMap<>(drawables));
+        this.colors = Collections.unmodifiableMap(new HashMap<>(colors));
+        this.colorStateLists = Collections.unmodifiableMap(new HashMap<>(colorStateLists));
+        this.typefaces = Collections.unmodifiableMap(new HashMap<>(typefaces));
+    }
+
+    /**
+     * Puts the values back into the theme's caches, in case any were evicted since the snapshot
+     * was built. This only touches the caches, so it's cheap enough to do right before a frame.
+     * The drawable budget isn't enforced until {@link #trim}, so nothing published here can be
+     * evicted before the views have read it.
+     */
+    @UiThread
+    void publish() {
+        CachePartition caches = index.getCaches();
+        for (Map.Entry<ResourceIndex.Entry, Drawable> entry : drawables.entrySet()) {
+            caches.drawables.putDrawable(entry.getKey(), entry.getValue(), false);
+        }
+        for (Map.Entry<ResourceIndex.Entry, Integer> entry : colors.entrySet()) {
+            caches.colors.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<ResourceIndex.Entry, ColorStateList> entry : colorStateLists.entrySet()) {
+            caches.colorStateLists.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<ResourceIndex.Entry, Typeface> entry : typefaces.entrySet()) {
+            caches.typefaces.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Brings the drawable budget back within its limit. Call this once the views have been
+     * re-themed from the published values.
+     */
+    @UiThread
+    void trim() {
+        index.getCaches().drawables.trimBudget();
+    }
+}
@@ -3,8 +3,10 @@ package com.xlythe.engine.theme;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -13,7 +15,19 @@ import android.widget.EditText;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedEditText extends EditText {
+public class ThemedEditText extends EditText implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Typeface defaultTypeface;
+    private Theme.Res font;
+    private String fontName;
+    private Theme.Res textColor;
+    private Theme.Res hintTextColor;
+    private Theme.Res linkTextColor;
+    private Theme.Res background;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedEditText(Context context) {
         super(context);
         setup(context, null);
@@ -36,7 +50,10 @@ public class ThemedEditText extends EditText {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         // Get font
+        defaultTypeface = getTypeface();
         setDefaultFont();
 
         if (attrs != null) {
@@ -88,6 +105,8 @@ public class ThemedEditText extends EditText {
                     setTypeface(t);
                 }
             }
+            font = res;
+            fontName = null;
         }
     }
 
@@ -99,36 +118,91 @@ public class ThemedEditText extends EditText {
             if (t != null) {
                 setTypeface(t);
             }
+            fontName = font;
+            this.font = null;
         }
     }
 
+    @Override
+    public void setTypeface(@Nullable Typeface tf) {
+        font = null;
+        fontName = null;
+        super.setTypeface(tf);
+    }
+
+    @Override
+    public void setTypeface(@Nullable Typeface tf, int style) {
+        font = null;
+        fontName = null;
+        super.setTypeface(tf, style);
+    }
+
     @UiThread
     public void setTextColor(@Nullable Theme.Res res) {
         if (res != null) {
             if (Theme.COLOR.equals(res.getType())) {
                 setTextColor(Theme.getColorStateList(getContext(), res.getName()));
             }
+            textColor = res;
         }
     }
 
+    @Override
+    public void setTextColor(int color) {
+        textColor = null;
+        super.setTextColor(color);
+    }
+
+    @Override
+    public void setTextColor(ColorStateList colors) {
+        textColor = null;
+        super.setTextColor(colors);
+    }
+
     @UiThread
     public void setHintTextColor(@Nullable Theme.Res res) {
         if (res != null) {
             if (Theme.COLOR.equals(res.getType())) {
                 setHintTextColor(Theme.getColorStateList(getContext(), res.getName()));
             }
+            hintTextColor = res;
         }
     }
 
+    @Override
+    public void setHintTextColor(int color) {
+        hintTextColor = null;
+        super.setHintTextColor(color);
+    }
+
+    @Override
+    public void setHintTextColor(ColorStateList colors) {
+        hintTextColor = null;
+        super.setHintTextColor(colors);
+    }
+
     @UiThread
     public void setLinkTextColor(@Nullable Theme.Res res) {
         if (res != null) {
             if (Theme.COLOR.equals(res.getType())) {
                 setLinkTextColor(Theme.getColorStateList(getContext(), res.getName()));
             }
+            linkTextColor = res;
         }
     }
 
+    @Override
+    public void setLinkTextColor(int color) {
+        linkTextColor = null;
+        super.setLinkTextColor(color);
+    }
+
+    @Override
+    public void setLinkTextColor(ColorStateList colors) {
+        linkTextColor = null;
+        super.setLinkTextColor(colors);
+    }
+
     @UiThread
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
@@ -143,12 +217,28 @@ public class ThemedEditText extends EditText {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -159,10 +249,36 @@ public class ThemedEditText extends EditText {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    @SuppressWarnings("deprecation")
+    public void applyTheme() {
+        // Leave the typeface alone unless we chose it, so that styles such as bold survive.
+        Theme.Res boundFont = font;
+        String boundFontName = fontName;
+        if (boundFont != null || boundFontName != null) {
+            // Falls back to the default font if the new theme doesn't have this one.
+            setTypeface(defaultTypeface);
+            setDefaultFont();
+            if (boundFont != null) {
+                setFont(boundFont);
+            } else {
+                setFont(boundFontName);
+            }
+        }
+        setTextColor(textColor);
+        setHintTextColor(hintTextColor);
+        setLinkTextColor(linkTextColor);
+        setBackground(background);
+        setWidth(width);
+        setHeight(height);
+    }
 }
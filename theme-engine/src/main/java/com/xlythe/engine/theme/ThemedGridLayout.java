@@ -3,6 +3,7 @@ package com.xlythe.engine.theme;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.GridLayout;
@@ -10,7 +11,13 @@ import android.widget.GridLayout;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedGridLayout extends GridLayout {
+public class ThemedGridLayout extends GridLayout implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res background;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedGridLayout(Context context) {
         super(context);
         setup(context, null);
@@ -28,6 +35,8 @@ public class ThemedGridLayout extends GridLayout {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -53,12 +62,28 @@ public class ThemedGridLayout extends GridLayout {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -69,10 +94,19 @@ public class ThemedGridLayout extends GridLayout {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setBackground(background);
+        setWidth(width);
+        setHeight(height);
+    }
 }
@@ -4,6 +4,8 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.ImageButton;
@@ -11,7 +13,14 @@ import android.widget.ImageButton;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedImageButton extends ImageButton {
+public class ThemedImageButton extends ImageButton implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res imageDrawable;
+    private Theme.Res background;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedImageButton(Context context) {
         super(context);
         setup(context, null);
@@ -34,6 +43,8 @@ public class ThemedImageButton extends ImageButton {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -54,9 +65,29 @@ public class ThemedImageButton extends ImageButton {
             if (Theme.DRAWABLE.equals(res.getType())) {
                 setImageDrawable(Theme.getDrawable(getContext(), res.getName()));
             }
+            imageDrawable = res;
         }
     }
 
+    // setImageBitmap ends up here too.
+    @Override
+    public void setImageDrawable(@Nullable Drawable drawable) {
+        imageDrawable = null;
+        super.setImageDrawable(drawable);
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        imageDrawable = null;
+        super.setImageResource(resId);
+    }
+
+    @Override
+    public void setImageURI(@Nullable Uri uri) {
+        imageDrawable = null;
+        super.setImageURI(uri);
+    }
+
     @UiThread
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
@@ -71,12 +102,28 @@ public class ThemedImageButton extends ImageButton {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -87,10 +134,20 @@ public class ThemedImageButton extends ImageButton {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setImageDrawable(imageDrawable);
+        setBackground(background);
+        setWidth(width);
+        setHeight(height);
+    }
 }
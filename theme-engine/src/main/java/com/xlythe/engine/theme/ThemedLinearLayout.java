@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.LinearLayout;
@@ -11,7 +12,14 @@ import android.widget.LinearLayout;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedLinearLayout extends LinearLayout {
+public class ThemedLinearLayout extends LinearLayout implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res divider;
+    private Theme.Res background;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedLinearLayout(Context context) {
         super(context);
         setup(context, null);
@@ -34,6 +42,8 @@ public class ThemedLinearLayout extends LinearLayout {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -57,9 +67,16 @@ public class ThemedLinearLayout extends LinearLayout {
                     setDividerDrawable(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            divider = res;
         }
     }
 
+    @Override
+    public void setDividerDrawable(@Nullable Drawable drawable) {
+        divider = null;
+        super.setDividerDrawable(drawable);
+    }
+
     @UiThread
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
@@ -74,12 +91,28 @@ public class ThemedLinearLayout extends LinearLayout {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -90,10 +123,20 @@ public class ThemedLinearLayout extends LinearLayout {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setDivider(divider);
+        setBackground(background);
+        setWidth(width);
+        setHeight(height);
+    }
 }
@@ -3,6 +3,7 @@ package com.xlythe.engine.theme;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.ProgressBar;
@@ -10,7 +11,14 @@ import android.widget.ProgressBar;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedProgressBar extends ProgressBar {
+public class ThemedProgressBar extends ProgressBar implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res background;
+    private Theme.Res progressDrawable;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedProgressBar(Context context) {
         super(context);
         setup(context, null);
@@ -27,6 +35,8 @@ public class ThemedProgressBar extends ProgressBar {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -55,21 +65,44 @@ public class ThemedProgressBar extends ProgressBar {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setProgressDrawable(Theme.Res res) {
         if (res != null) {
             if (Theme.DRAWABLE.equals(res.getType())) {
                 setProgressDrawable(Theme.getDrawable(getContext(), res.getName()));
             }
+            progressDrawable = res;
         }
     }
 
+    @Override
+    public void setProgressDrawable(Drawable drawable) {
+        progressDrawable = null;
+        super.setProgressDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -80,10 +113,20 @@ public class ThemedProgressBar extends ProgressBar {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setBackground(background);
+        setProgressDrawable(progressDrawable);
+        setWidth(width);
+        setHeight(height);
+    }
 }
@@ -3,6 +3,7 @@ package com.xlythe.engine.theme;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.RadioGroup;
@@ -10,7 +11,14 @@ import android.widget.RadioGroup;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedRadioGroup extends RadioGroup {
+public class ThemedRadioGroup extends RadioGroup implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res divider;
+    private Theme.Res background;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedRadioGroup(Context context) {
         super(context);
         setup(context, null);
@@ -22,6 +30,8 @@ public class ThemedRadioGroup extends RadioGroup {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -45,9 +55,16 @@ public class ThemedRadioGroup extends RadioGroup {
                     setDividerDrawable(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            divider = res;
         }
     }
 
+    @Override
+    public void setDividerDrawable(@Nullable Drawable drawable) {
+        divider = null;
+        super.setDividerDrawable(drawable);
+    }
+
     @UiThread
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
@@ -62,12 +79,28 @@ public class ThemedRadioGroup extends RadioGroup {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -78,10 +111,20 @@ public class ThemedRadioGroup extends RadioGroup {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setDivider(divider);
+        setBackground(background);
+        setWidth(width);
+        setHeight(height);
+    }
 }
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.widget.Spinner;
@@ -11,7 +12,14 @@ import android.widget.Spinner;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 
-public class ThemedSpinner extends Spinner {
+public class ThemedSpinner extends Spinner implements ThemedViews.Themeable {
+    // The resources this view is bound to, so they can be loaded again when the theme changes.
+    // Setting a value through the framework's own setters unbinds it.
+    private Theme.Res background;
+    private Theme.Res popupBackground;
+    private Theme.Res width;
+    private Theme.Res height;
+
     public ThemedSpinner(Context context) {
         super(context);
         setup(context, null);
@@ -29,6 +37,8 @@ public class ThemedSpinner extends Spinner {
     }
 
     private void setup(Context context, AttributeSet attrs) {
+        ThemedViews.register(this);
+
         if (attrs != null) {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.theme);
             if (a != null) {
@@ -57,9 +67,24 @@ public class ThemedSpinner extends Spinner {
                     setBackground(Theme.getDrawable(getContext(), res.getName()));
                 }
             }
+            background = res;
         }
     }
 
+    @Override
+    public void setBackgroundColor(int color) {
+        background = null;
+        super.setBackgroundColor(color);
+    }
+
+    // setBackground and setBackgroundResource both end up here.
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(@Nullable Drawable drawable) {
+        background = null;
+        super.setBackgroundDrawable(drawable);
+    }
+
     @UiThread
     @TargetApi(16)
     public void setPopupBackground(Theme.Res res) {
@@ -67,12 +92,22 @@ public class ThemedSpinner extends Spinner {
             if (Build.VERSION.SDK_INT >= 16) {
                 setPopupBackgroundDrawable(Theme.getDrawable(getContext(), res.getName()));
             }
+            popupBackground = res;
         }
     }
 
+    // setPopupBackgroundResource ends up here too.
+    @Override
+    @TargetApi(16)
+    public void setPopupBackgroundDrawable(@Nullable Drawable drawable) {
+        popupBackground = null;
+        super.setPopupBackgroundDrawable(drawable);
+    }
+
     @UiThread
     public void setWidth(@Nullable Theme.Res res) {
         if (res != null) {
+            width = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().width = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
@@ -83,10 +118,20 @@ public class ThemedSpinner extends Spinner {
     @UiThread
     public void setHeight(@Nullable Theme.Res res) {
         if (res != null) {
+            height = res;
             if (Theme.DIMEN.equals(res.getType())) {
                 getLayoutParams().height = Theme.getDimen(getContext(), res).intValue();
                 requestLayout();
             }
         }
     }
+
+    @Override
+    @UiThread
+    public void applyTheme() {
+        setBackground(background);
+        setPopupBackground(popupBackground);
+        setWidth(width);
+        setHeight(height);
+    }
 }
@@ -0,0 +1,130 @@
+package com.xlythe.engine.theme;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.UiThread;
+
+/**
+ * Every Themed* view that's still alive, so that a theme change can be applied to them in place
+ * instead of recreating the activity. Views are held weakly, and however many times the theme
+ * changes within a frame, they're re-themed together in one pass before the next frame is drawn.
+ *
+ * Every theme change bumps a generation, and each view remembers the generation it was last bound
+ * under. Only views bound under an older generation are re-themed, so views inflated after the
+ * change (such as every view on a cold start) aren't bound twice.
+ */
+class ThemedViews {
+    /**
+     * A view that remembers which {@link Theme.Res} it was bound to, and can load them again.
+     */
+    interface Themeable {
+        @UiThread
+        void applyTheme();
+    }
+
+    // Maps each view to the generation it was bound under.
+    private static final Map<Themeable, Integer> VIEWS = new WeakHashMap<>();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static int sGeneration;
+    private static boolean sApplyScheduled;
+
+    private ThemedViews() {}
+
+    /**
+     * Must be called before the view reads anything from the theme, so that a theme change that
+     * lands while it's binding still marks it as stale.
+     */
+    @UiThread
+    static void register(Themeable view) {
+        synchronized (VIEWS) {
+            VIEWS.put(view, sGeneration);
+        }
+    }
+
+    /**
+     * Marks every registered view as stale. Call this after the theme has changed.
+     */
+    @AnyThread
+    static void invalidate() {
+        synchronized (VIEWS) {
+            sGeneration++;
+        }
+    }
+
+    /**
+     * Marks every registered view as stale, and re-themes them on the next frame.
+     */
+    @AnyThread
+    static void requestApplyTheme() {
+        synchronized (VIEWS) {
+            sGeneration++;
+            if (sApplyScheduled || VIEWS.isEmpty()) {
+                return;
+            }
+            sApplyScheduled = true;
+        }
+        postOnNextFrame(new Runnable() {
+            @Override
+            public void run() {
+                applyTheme();
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the main thread at the start of the next frame, before anything is drawn.
+     */
+    @AnyThread
+    static void postOnNextFrame(final Runnable task) {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (Build.VERSION.SDK_INT >= 16) {
+                    postFrameCallback(task);
+                } else {
+                    task.run();
+                }
+            }
+        });
+    }
+
+    @TargetApi(16)
+    private static void postFrameCallback(final Runnable task) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Re-themes every stale view now.
+     */
+    @UiThread
+    static void applyTheme() {
+        List<Themeable> views = new ArrayList<>();
+        synchronized (VIEWS) {
+            sApplyScheduled = false;
+            for (Map.Entry<Themeable, Integer> entry : VIEWS.entrySet()) {
+                if (entry.getValue() != sGeneration) {
+                    views.add(entry.getKey());
+                    entry.setValue(sGeneration);
+                }
+            }
+        }
+        for (Themeable view : views) {
+            view.applyTheme();
+        }
+    }
+}
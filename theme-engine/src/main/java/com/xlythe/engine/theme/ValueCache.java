@@ -0,0 +1,104 @@
+package com.xlythe.engine.theme;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A bounded cache of resolved values, keyed by index entries. Unlike an LruCache, a hit doesn't
+ * lock: it's one read from a ConcurrentHashMap, plus a timestamp written on the value's node so
+ * that we know roughly when it was last used. Only growing past the bound, or being trimmed,
+ * takes the cache's lock, and then the values that were used least recently go first.
+ */
+class ValueCache<V> {
+    private final ConcurrentMap<ResourceIndex.Entry, Node<V>> map = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    ValueCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Nullable
+    V get(ResourceIndex.Entry key) {
+        Node<V> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        // Racy, but a lost update only makes the value look a little older than it is.
+        node.lastUsed = System.nanoTime();
+        return node.value;
+    }
+
+    void put(ResourceIndex.Entry key, V value) {
+        map.put(key, new Node<>(value));
+        if (map.size() > maxSize) {
+            trimToSize(maxSize);
+        }
+    }
+
+    void remove(ResourceIndex.Entry key) {
+        map.remove(key);
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    void evictAll() {
+        map.clear();
+    }
+
+    /**
+     * Evicts the least recently used values until at most maxSize are left.
+     */
+    synchronized void trimToSize(int maxSize) {
+        int excess = map.size() - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+
+        // Readers keep updating the timestamps, so sort on a copy of them.
+        List<Candidate<V>> candidates = new ArrayList<>(map.size());
+        for (Map.Entry<ResourceIndex.Entry, Node<V>> entry : map.entrySet()) {
+            candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(candidates, new Comparator<Candidate<V>>() {
+            @Override
+            public int compare(Candidate<V> a, Candidate<V> b) {
+                return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < excess && i < candidates.size(); i++) {
+            Candidate<V> candidate = candidates.get(i);
+            // Leave it alone if it was replaced in the meantime.
+            map.remove(candidate.key, candidate.node);
+        }
+    }
+
+    private static final class Node<V> {
+        final V value;
+        long lastUsed = System.nanoTime();
+
+        Node(V value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Candidate<V> {
+        final ResourceIndex.Entry key;
+        final Node<V> node;
+        final long lastUsed;
+
+        Candidate(ResourceIndex.Entry key, Node<V> node) {
+            this.key = key;
+            this.node = node;
+            this.lastUsed = node.lastUsed;
+        }
+    }
+}
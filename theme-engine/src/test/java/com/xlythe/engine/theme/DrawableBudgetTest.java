@@ -0,0 +1,182 @@
+package com.xlythe.engine.theme;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DrawableBudgetTest {
+    // A 50x50 drawable is estimated at 4 bytes per pixel.
+    private static final int DRAWABLE_SIZE = 50;
+    private static final int DRAWABLE_BYTES = 4 * DRAWABLE_SIZE * DRAWABLE_SIZE;
+
+    private final ResourceIndex index = new ResourceIndex("com.example.host", "com.example.theme", null);
+
+    private ResourceIndex.Entry entry(String name) {
+        return index.put(Theme.DRAWABLE, name, 1, 1);
+    }
+
+    @Test
+    public void evictsFromTheLeastRecentlyUsedCacheFirst() {
+        DrawableBudget budget = new DrawableBudget(4 * DRAWABLE_BYTES);
+        DrawableCache first = new DrawableCache(budget);
+        DrawableCache second = new DrawableCache(budget);
+
+        ResourceIndex.Entry a = entry("a");
+        first.putDrawable(a, new TestDrawable());
+        first.putDrawable(entry("b"), new TestDrawable());
+        second.putDrawable(entry("c"), new TestDrawable());
+        second.putDrawable(entry("d"), new TestDrawable());
+        assertEquals(4 * DRAWABLE_BYTES, budget.size());
+
+        // Both caches are read, the first one first, so going over budget costs the first cache a
+        // drawable. Within it, the drawable that wasn't read goes.
+        assertNotNull(first.getConstantState(a));
+        assertNotNull(second.getConstantState(entry("c")));
+        second.putDrawable(entry("e"), new TestDrawable());
+
+        assertEquals(4 * DRAWABLE_BYTES, budget.size());
+        assertEquals(1, first.snapshot().size());
+        assertNotNull(first.getConstantState(a));
+        assertEquals(3, second.snapshot().size());
+    }
+
+    @Test
+    public void releasedCacheStopsCounting() {
+        DrawableBudget budget = new DrawableBudget(4 * DRAWABLE_BYTES);
+        DrawableCache cache = new DrawableCache(budget);
+        ResourceIndex.Entry a = entry("a");
+        cache.putDrawable(a, new TestDrawable());
+        assertEquals(DRAWABLE_BYTES, budget.size());
+
+        cache.release();
+        assertEquals(0, budget.size());
+
+        // A load that finishes after the release isn't kept.
+        cache.putDrawable(a, new TestDrawable());
+        assertNull(cache.getConstantState(a));
+        assertEquals(0, budget.size());
+    }
+
+    @Test
+    public void untrimmedPutsWaitForTrimBudget() {
+        DrawableBudget budget = new DrawableBudget(2 * DRAWABLE_BYTES);
+        DrawableCache cache = new DrawableCache(budget);
+        cache.putDrawable(entry("a"), new TestDrawable(), false);
+        cache.putDrawable(entry("b"), new TestDrawable(), false);
+        cache.putDrawable(entry("c"), new TestDrawable(), false);
+
+        // A batch can go over budget without evicting any of itself.
+        assertEquals(3 * DRAWABLE_BYTES, budget.size());
+        assertEquals(3, cache.snapshot().size());
+
+        cache.trimBudget();
+        assertEquals(2 * DRAWABLE_BYTES, budget.size());
+    }
+
+    @Test(timeout = 30000)
+    public void staysWithinBudgetUnderContention() throws Exception {
+        final int maxSize = 20 * DRAWABLE_BYTES;
+        final DrawableBudget budget = new DrawableBudget(maxSize);
+        final List<DrawableCache> caches = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            caches.add(new DrawableCache(budget));
+        }
+        final List<ResourceIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(entry("drawable" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 10000; i++) {
+                            DrawableCache cache = caches.get(random.nextInt(caches.size()));
+                            ResourceIndex.Entry key = entries.get(random.nextInt(entries.size()));
+                            if (cache.getConstantState(key) == null) {
+                                cache.putDrawable(key, new TestDrawable());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue("Over budget: " + budget.size(), budget.size() <= maxSize);
+        int total = 0;
+        for (DrawableCache cache : caches) {
+            total += cache.size();
+        }
+        assertEquals(total, budget.size());
+    }
+
+    private static class TestDrawable extends Drawable {
+        private final ConstantState state = new ConstantState() {
+            @Override
+            public Drawable newDrawable() {
+                return new TestDrawable();
+            }
+
+            @Override
+            public int getChangingConfigurations() {
+                return 0;
+            }
+        };
+
+        @Override
+        public ConstantState getConstantState() {
+            return state;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return DRAWABLE_SIZE;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return DRAWABLE_SIZE;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {}
+
+        @Override
+        public void setAlpha(int alpha) {}
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {}
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.OPAQUE;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.xlythe.engine.theme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InFlightLoadsTest {
+    private static final int THREAD_COUNT = 16;
+
+    @Test(timeout = 10000)
+    public void concurrentRequestsShareOneLoad() throws Exception {
+        final AtomicLong coalesced = new AtomicLong();
+        final InFlightLoads<String, Object> loads = new InFlightLoads<>(coalesced);
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return loads.load("key", new InFlightLoads.Loader<Object>() {
+                            @Override
+                            public Object load() {
+                                loadCount.incrementAndGet();
+                                await(release);
+                                return new Object();
+                            }
+                        });
+                    }
+                }));
+            }
+
+            // Hold the load open until everyone else is waiting on it.
+            while (coalesced.get() < THREAD_COUNT - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            Object value = results.get(0).get();
+            for (Future<Object> result : results) {
+                assertSame(value, result.get());
+            }
+            assertEquals(1, loadCount.get());
+            assertEquals(THREAD_COUNT - 1, coalesced.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void stressManyKeys() throws Exception {
+        final int keyCount = 32;
+        final int requestsPerThread = 5000;
+        final InFlightLoads<Integer, String> loads = new InFlightLoads<>(new AtomicLong());
+        final AtomicInteger[] running = new AtomicInteger[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            running[i] = new AtomicInteger();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            final int key = random.nextInt(keyCount);
+                            String value = loads.load(key, new InFlightLoads.Loader<String>() {
+                                @Override
+                                public String load() {
+                                    // Never more than one load of a key at a time.
+                                    assertEquals(1, running[key].incrementAndGet());
+                                    Thread.yield();
+                                    running[key].decrementAndGet();
+                                    return "value" + key;
+                                }
+                            });
+                            assertEquals("value" + key, value);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reentrantRequestRunsInline() {
+        final InFlightLoads<String, String> loads = new InFlightLoads<>(new AtomicLong());
+        String value = loads.load("key", new InFlightLoads.Loader<String>() {
+            @Override
+            public String load() {
+                return loads.load("key", new InFlightLoads.Loader<String>() {
+                    @Override
+                    public String load() {
+                        return "inner";
+                    }
+                }) + "-outer";
+            }
+        });
+        assertEquals("inner-outer", value);
+    }
+
+    @Test(timeout = 10000)
+    public void failureReachesEveryWaiter() throws Exception {
+        final AtomicLong coalesced = new AtomicLong();
+        final InFlightLoads<String, Object> loads = new InFlightLoads<>(coalesced);
+        final IllegalStateException failure = new IllegalStateException("load failed");
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return loads.load("key", new InFlightLoads.Loader<Object>() {
+                            @Override
+                            public Object load() {
+                                await(release);
+                                throw failure;
+                            }
+                        });
+                    }
+                }));
+            }
+
+            while (coalesced.get() < THREAD_COUNT - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<Object> result : results) {
+                try {
+                    result.get();
+                    fail("Expected the load to fail");
+                } catch (ExecutionException e) {
+                    assertSame(failure, e.getCause());
+                }
+            }
+
+            // The failed call is forgotten, so the next request loads again.
+            assertEquals("retried", loads.load("key", new InFlightLoads.Loader<Object>() {
+                @Override
+                public Object load() {
+                    return "retried";
+                }
+            }));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.xlythe.engine.theme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ResourceIndexTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int NAME_COUNT = 2000;
+
+    private static ResourceIndex newIndex() {
+        return new ResourceIndex("com.example.host", "com.example.theme", null);
+    }
+
+    @Test
+    public void putThenGet() {
+        ResourceIndex index = newIndex();
+        assertNull(index.get(Theme.COLOR, "primary"));
+
+        ResourceIndex.Entry entry = index.put(Theme.COLOR, "primary", 1, 2);
+        assertSame(entry, index.get(Theme.COLOR, "primary"));
+        assertEquals(1, entry.themeId);
+        assertEquals(2, entry.hostId);
+
+        // The same name under another type is another resource.
+        assertNull(index.get(Theme.DRAWABLE, "primary"));
+        // The first put wins.
+        assertSame(entry, index.put(Theme.COLOR, "primary", 3, 4));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentPutsKeepOneEntryPerResource() throws Exception {
+        final ResourceIndex index = newIndex();
+        final ConcurrentMap<String, ResourceIndex.Entry> seen = new ConcurrentHashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < NAME_COUNT * 4; i++) {
+                            String name = "name" + random.nextInt(NAME_COUNT);
+                            ResourceIndex.Entry entry = index.get(Theme.DRAWABLE, name);
+                            if (entry == null) {
+                                entry = index.put(Theme.DRAWABLE, name, i, i);
+                            }
+                            ResourceIndex.Entry existing = seen.putIfAbsent(name, entry);
+                            if (existing != null) {
+                                assertSame(existing, entry);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(seen.size(), index.getEntries().size());
+        for (ConcurrentMap.Entry<String, ResourceIndex.Entry> entry : seen.entrySet()) {
+            assertSame(entry.getValue(), index.get(Theme.DRAWABLE, entry.getKey()));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void readersAlwaysSeePublishedEntries() throws Exception {
+        final ResourceIndex index = newIndex();
+        final AtomicInteger published = new AtomicInteger(-1);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < THREAD_COUNT - 1; t++) {
+                final long seed = t;
+                readers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(seed);
+                        while (!done.get()) {
+                            int max = published.get();
+                            if (max < 0) {
+                                continue;
+                            }
+                            // Anything published before we looked must be found, even mid-resize.
+                            int i = random.nextInt(max + 1);
+                            ResourceIndex.Entry entry = index.get(Theme.STRING, "name" + i);
+                            assertNotNull("Missing name" + i, entry);
+                            assertEquals(i, entry.themeId);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < NAME_COUNT * 10; i++) {
+                index.put(Theme.STRING, "name" + i, i, i);
+                published.set(i);
+            }
+            done.set(true);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.xlythe.engine.theme;
+
+import android.content.Context;
+import android.graphics.Typeface;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class ThemeTest {
+    private static final int LOOKUP_COUNT = 100000;
+
+    @Test
+    public void cachedLookupsDontAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        Context context = RuntimeEnvironment.getApplication();
+        // A plain color that appcompat brings into our resources. No theme is set, so it resolves
+        // against the host.
+        int colorId = context.getResources().getIdentifier("material_grey_850", "color", context.getPackageName());
+        assertNotEquals(0, colorId);
+        Theme.setFont(context, Typeface.DEFAULT);
+        assertSame(Typeface.DEFAULT, Theme.getFont(context));
+
+        // Warm the caches, and give the loop a chance to be compiled.
+        long sum = 0;
+        for (int i = 0; i < 3; i++) {
+            sum += lookUp(context, colorId);
+        }
+
+        // Reading the counter may allocate, so measure that on its own and take it out.
+        long start = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - start;
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        sum += lookUp(context, colorId);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertNotEquals(0, sum);
+        assertEquals("Cached lookups allocated " + allocated + " bytes", 0, allocated);
+    }
+
+    // Goes through the public getters, so the Res lookup, the index lookup in getEntry and the
+    // caches are all measured.
+    private static long lookUp(Context context, int colorId) {
+        long sum = 0;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            sum += Theme.getColor(context, colorId);
+            sum += Theme.getColorStateList(context, colorId).getDefaultColor();
+            sum += Theme.getFont(context).getStyle();
+        }
+        return sum;
+    }
+}
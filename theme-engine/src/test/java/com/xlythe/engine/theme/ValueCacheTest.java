@@ -0,0 +1,87 @@
+package com.xlythe.engine.theme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCacheTest {
+    private final ResourceIndex index = new ResourceIndex("com.example.host", "com.example.theme", null);
+
+    private ResourceIndex.Entry entry(String name) {
+        return index.put(Theme.COLOR, name, 1, 1);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedValues() throws Exception {
+        ValueCache<Integer> cache = new ValueCache<>(2);
+        ResourceIndex.Entry a = entry("a");
+        ResourceIndex.Entry b = entry("b");
+        cache.put(a, 1);
+        Thread.sleep(1);
+        cache.put(b, 2);
+        Thread.sleep(1);
+
+        // Reading a makes b the least recently used.
+        assertEquals(Integer.valueOf(1), cache.get(a));
+        Thread.sleep(1);
+        cache.put(entry("c"), 3);
+
+        assertEquals(2, cache.size());
+        assertEquals(Integer.valueOf(1), cache.get(a));
+        assertNull(cache.get(b));
+    }
+
+    @Test(timeout = 30000)
+    public void staysBoundedUnderContention() throws Exception {
+        final int maxSize = 16;
+        final ValueCache<Integer> cache = new ValueCache<>(maxSize);
+        final List<ResourceIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(entry("color" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            int n = random.nextInt(entries.size());
+                            Integer value = cache.get(entries.get(n));
+                            if (value == null) {
+                                cache.put(entries.get(n), n);
+                            } else {
+                                // A hit always returns the value that was put for that key.
+                                assertEquals(n, value.intValue());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // A trim skips values that were replaced while it ran, so the cache may be a little over.
+        cache.trimToSize(maxSize);
+        assertTrue("Over the bound: " + cache.size(), cache.size() <= maxSize);
+    }
+}